@@ -2,14 +2,21 @@ package org.opencds.cqf.common.config;
 
 import java.lang.reflect.InvocationTargetException;
 import java.sql.Driver;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.Iterables;
 import com.google.gson.JsonArray;
 
 import org.apache.commons.dbcp2.BasicDataSource;
@@ -18,6 +25,11 @@ import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.opencds.cqf.cds.providers.ProviderConfiguration;
+import org.opencds.cqf.common.evaluation.LibraryCache;
+import org.opencds.cqf.common.listener.ValueSetCacheResourceChangeListener;
+import org.opencds.cqf.common.providers.ExpansionStore;
+import org.opencds.cqf.common.providers.RemoteTerminologyCache;
+import org.opencds.cqf.common.providers.ValueSetExpansion;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.springframework.beans.factory.annotation.Autowire;
@@ -28,6 +40,7 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
@@ -164,44 +177,103 @@ public class FhirServerConfig {
     }
 
     @Bean
-    public IResourceChangeListener valueSetChangeListener(IResourceChangeListenerRegistry resourceChangeListenerRegistry, Map<String, Iterable<Code>> terminologyCache) {
-        IResourceChangeListener listener = new IResourceChangeListener(){
-
-            @Override
-            public void handleInit(Collection<IIdType> theResourceIds) {
-                // Intentionally empty
-            }
-
-            // TODO: Selectively clear by url. Requires a lookup on the resource
-            @Override
-            public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
-                terminologyCache.clear();
-            }
-            
-        };
+    public IResourceChangeListener valueSetChangeListener(IResourceChangeListenerRegistry resourceChangeListenerRegistry, DaoRegistry daoRegistry, Map<String, Iterable<Code>> terminologyCache, ExpansionStore expansionStore) {
+        IResourceChangeListener listener = new ValueSetCacheResourceChangeListener(daoRegistry.getResourceDao("ValueSet"), terminologyCache, expansionStore);
 
         resourceChangeListenerRegistry.registerResourceResourceChangeListener("ValueSet", SearchParameterMap.newSynchronous(), listener, 1000);
 
         return listener;
     }
 
+    /**
+     * Expanded value sets by url, weighed by their number of codes
+     */
     @Bean
-    public Map<String, Iterable<Code>> terminologyCache() {
-        Cache<String, Iterable<Code>> cache = Caffeine.newBuilder().maximumSize(100).expireAfterAccess(Duration.ofMinutes(60)).build();
-        return cache.asMap();
+    public AsyncCache<String, Iterable<Code>> terminologyCodeCache() {
+        long maxCodes = HapiProperties.getTerminologyCacheMaxCodes();
+        long expireMinutes = HapiProperties.getTerminologyCacheExpireAfterAccessMinutes();
+        ourLog.info("Server configured to cache up to {} value set codes for {} minutes", maxCodes, expireMinutes);
+
+        return Caffeine.newBuilder()
+                .maximumWeight(maxCodes)
+                .weigher((String url, Iterable<Code> codes) -> Math.max(1, codes instanceof ValueSetExpansion
+                        ? ((ValueSetExpansion) codes).size() : Iterables.size(codes)))
+                .expireAfterAccess(Duration.ofMinutes(expireMinutes))
+                .recordStats()
+                .buildAsync();
+    }
+
+    @Bean
+    public RemoteTerminologyCache remoteTerminologyCache() {
+        return new RemoteTerminologyCache(HapiProperties.getTerminologyRemoteCacheMaxCodes(),
+                Duration.ofMinutes(HapiProperties.getTerminologyRemoteCacheExpireAfterWriteMinutes()));
+    }
+
+    @Bean
+    public ExpansionStore expansionStore() {
+        String directory = HapiProperties.getTerminologyExpansionStoreDirectory();
+        if (directory == null || directory.isEmpty()) {
+            return new ExpansionStore(null);
+        }
+
+        ourLog.info("Server configured to store value set expansions in {}", directory);
+        return new ExpansionStore(Paths.get(directory));
+    }
+
+    @Bean
+    public Map<String, Iterable<Code>> terminologyCache(AsyncCache<String, Iterable<Code>> terminologyCodeCache) {
+        return terminologyCodeCache.synchronous().asMap();
     }
 
 
     @Bean(name="globalModelCache")
 	Map<VersionedIdentifier, Model> globalModelCache() {
-		return new ConcurrentHashMap<VersionedIdentifier, Model>();
+		return Caffeine.newBuilder()
+				.maximumSize(HapiProperties.getCqlModelCacheMaxSize())
+				.<VersionedIdentifier, Model>build()
+				.asMap();
 	}
 
 	@Bean(name="globalLibraryCache") 
 	Map<org.cqframework.cql.elm.execution.VersionedIdentifier, Library> globalLibraryCache() {
-		return new ConcurrentHashMap<org.cqframework.cql.elm.execution.VersionedIdentifier, Library>();
+		return new LibraryCache(HapiProperties.getCqlLibraryCacheMaxSize());
 	}
 
+    /**
+     * The libraries compiled for the expressions of PlanDefinitions and
+     * ActivityDefinitions, keyed by the resource type, the libraries they
+     * reference and the expression. Cleared whenever a Library changes.
+     */
+    @Bean(name = "compiledExpressionCache")
+    public Cache<String, Library> compiledExpressionCache() {
+        return Caffeine.newBuilder()
+                .maximumSize(HapiProperties.getCqlExpressionCacheMaxSize())
+                .build();
+    }
+
+    /**
+     * Runs the queries of a retrieve that was split into several searches. The
+     * pool uses at most half of the database connections so the requests that
+     * start the retrieves can still get one, and callers run the queries
+     * themselves when it is saturated.
+     */
+    @Bean(name = "retrieveQueryExecutor", destroyMethod = "shutdown")
+    public ExecutorService retrieveQueryExecutor() {
+        int threadCount = Math.max(1, Math.min(HapiProperties.getRetrieveQueryThreadCount(),
+                HapiProperties.getDataSourceMaxPoolSize() / 2));
+        ourLog.info("Server configured to run split retrieves on {} threads", threadCount);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(threadCount * 16), runnable -> {
+                    Thread thread = new Thread(runnable, "retrieve-query-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Bean(name="globalCdsServiceCache")
     AtomicReference<JsonArray> cdsServiceCache(){
         return new AtomicReference<>();
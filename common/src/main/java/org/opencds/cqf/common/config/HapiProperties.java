@@ -77,6 +77,27 @@ public class HapiProperties {
     static final String CDSHOOKS_FHIRSERVER_SEARCHSTYLE= "cds_hooks.fhirServer.searchStyle";
     static final String CDSHOOKS_PREFETCH_MAXURILENGTH= "cds_hooks.prefetch.maxUriLength";
     static final String CQL_LOGGING_ENABLED = "hapi.fhir.cql_logging_enabled";
+    static final String CQL_EXPRESSION_CACHE_MAX_SIZE = "cql.expression_cache.max_size";
+    static final String CQL_LIBRARY_CACHE_MAX_SIZE = "cql.library_cache.max_size";
+    static final String CQL_MODEL_CACHE_MAX_SIZE = "cql.model_cache.max_size";
+    static final String CQL_WARM_UP_ENABLED = "cql.warm_up.enabled";
+    static final String CQL_WARM_UP_THREAD_COUNT = "cql.warm_up.thread_count";
+
+    static final String MEASURE_EVALUATION_THREAD_COUNT = "measure_evaluation.thread_count";
+    static final String MEASURE_EVALUATION_CHUNK_SIZE = "measure_evaluation.chunk_size";
+    static final String MEASURE_EVALUATION_COHORT_PREFETCH = "measure_evaluation.cohort_prefetch";
+    static final String MEASURE_EVALUATION_WARM_TERMINOLOGY = "measure_evaluation.warm_terminology";
+
+    static final String RETRIEVE_QUERY_CACHE_MAX_RESOURCES = "retrieve.query_cache.max_resources";
+    static final String RETRIEVE_PAGE_SIZE = "retrieve.page_size";
+    static final String RETRIEVE_QUERY_THREAD_COUNT = "retrieve.query_thread_count";
+    static final String RETRIEVE_VALUE_SET_IN_THRESHOLD = "retrieve.value_set_in_threshold";
+    static final String TERMINOLOGY_CACHE_MAX_CODES = "terminology.cache.max_codes";
+    static final String TERMINOLOGY_CACHE_EXPIRE_AFTER_ACCESS_MINUTES = "terminology.cache.expire_after_access_minutes";
+    static final String TERMINOLOGY_EXPANSION_STORE_DIRECTORY = "terminology.expansion_store.directory";
+    static final String TERMINOLOGY_REMOTE_CACHE_MAX_CODES = "terminology.remote_cache.max_codes";
+    static final String TERMINOLOGY_REMOTE_CACHE_EXPIRE_AFTER_WRITE_MINUTES = "terminology.remote_cache.expire_after_write_minutes";
+    static final String TERMINOLOGY_WARM_UP_THREAD_COUNT = "terminology.warm_up.thread_count";
 
     private static Properties properties;
 
@@ -485,4 +506,82 @@ public class HapiProperties {
         return HapiProperties.getBooleanProperty(CQL_LOGGING_ENABLED, true);
     }
 
+    public static Integer getCqlExpressionCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(CQL_EXPRESSION_CACHE_MAX_SIZE, 1000);
+    }
+
+    public static Integer getCqlLibraryCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(CQL_LIBRARY_CACHE_MAX_SIZE, 1000);
+    }
+
+    public static Integer getCqlModelCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(CQL_MODEL_CACHE_MAX_SIZE, 100);
+    }
+
+    public static Boolean getCqlWarmUpEnabled() {
+        return HapiProperties.getBooleanProperty(CQL_WARM_UP_ENABLED, false);
+    }
+
+    public static Integer getCqlWarmUpThreadCount() {
+        return HapiProperties.getIntegerProperty(CQL_WARM_UP_THREAD_COUNT, 4);
+    }
+
+    // ************************* MEASURE_EVALUATION ****************
+    public static Integer getMeasureEvaluationThreadCount() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_THREAD_COUNT, 1);
+    }
+
+    public static Integer getMeasureEvaluationChunkSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_CHUNK_SIZE, 500);
+    }
+
+    public static Boolean getMeasureEvaluationCohortPrefetch() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_COHORT_PREFETCH, false);
+    }
+
+    public static Boolean getMeasureEvaluationWarmTerminology() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_WARM_TERMINOLOGY, true);
+    }
+
+    // ************************* RETRIEVE ****************
+    public static Integer getRetrieveQueryCacheMaxResources() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_QUERY_CACHE_MAX_RESOURCES, 10000);
+    }
+
+    public static Integer getRetrievePageSize() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_PAGE_SIZE, 100);
+    }
+
+    public static Integer getRetrieveQueryThreadCount() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_QUERY_THREAD_COUNT, 4);
+    }
+
+    public static Integer getRetrieveValueSetInThreshold() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_VALUE_SET_IN_THRESHOLD, 500);
+    }
+
+    // ************************* TERMINOLOGY ****************
+    public static Integer getTerminologyCacheMaxCodes() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_CACHE_MAX_CODES, 1000000);
+    }
+
+    public static Integer getTerminologyCacheExpireAfterAccessMinutes() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_CACHE_EXPIRE_AFTER_ACCESS_MINUTES, 60);
+    }
+
+    public static String getTerminologyExpansionStoreDirectory() {
+        return HapiProperties.getProperty(TERMINOLOGY_EXPANSION_STORE_DIRECTORY);
+    }
+
+    public static Integer getTerminologyRemoteCacheMaxCodes() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_REMOTE_CACHE_MAX_CODES, 1000000);
+    }
+
+    public static Integer getTerminologyRemoteCacheExpireAfterWriteMinutes() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_REMOTE_CACHE_EXPIRE_AFTER_WRITE_MINUTES, 60);
+    }
+
+    public static Integer getTerminologyWarmUpThreadCount() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_WARM_UP_THREAD_COUNT, 4);
+    }
 }
@@ -0,0 +1,52 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public enum EvaluatedResources {
+    NONE("none", "None", "Evaluated resources are not referenced by the report"),
+
+    IDS("ids", "Ids", "Evaluated resources are referenced by id only"),
+
+    FULL("full", "Full", "Evaluated resources are referenced along with the populations they were evaluated for");
+
+    private String code;
+    private String display;
+    private String definition;
+
+    EvaluatedResources(String code, String display, String definition) {
+        this.code = code;
+        this.display = display;
+        this.definition = definition;
+    }
+
+    private static final Map<String, EvaluatedResources> lookup = new HashMap<>();
+
+    static {
+        for (EvaluatedResources er : EvaluatedResources.values()) {
+            lookup.put(er.toCode(), er);
+        }
+    }
+
+    public static EvaluatedResources fromCode(String code) {
+        if (code != null && !code.isEmpty()) {
+            if (lookup.containsKey(code)) {
+                return lookup.get(code);
+            }
+        }
+
+        return null;
+    }
+
+    public String toCode() {
+        return this.code;
+    }
+
+    public String getDefinition() {
+        return this.definition;
+    }
+
+    public String getDisplay() {
+        return this.display;
+    }
+}
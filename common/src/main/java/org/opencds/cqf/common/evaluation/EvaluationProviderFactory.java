@@ -1,5 +1,7 @@
 package org.opencds.cqf.common.evaluation;
 
+import org.opencds.cqf.common.retrieve.PatientCohort;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 
@@ -12,6 +14,11 @@ public interface EvaluationProviderFactory {
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider);
 
+    // Retrieves are served from the retrieveCache if it is not null, and retrieved
+    // for all the patients of the cohort at once if the cohort is not null
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            RetrieveCache retrieveCache, PatientCohort cohort);
+
     public TerminologyProvider createTerminologyProvider(String model, String version, String url, String user,
             String pass);
 }
\ No newline at end of file
@@ -0,0 +1,206 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+/**
+ * The compiled libraries shared by all evaluations, bounded to a number of
+ * library versions whatever their size in memory. Caffeine picks the versions
+ * to evict by how often and how recently they were used (W-TinyLFU), so the
+ * least recently used version is not always the first one to go.
+ *
+ * The cache knows which cached libraries include which. Removing a library
+ * also removes every cached library that includes it, directly or through
+ * other libraries, since their ELM may depend on what changed. Includes are
+ * matched by library name, so all versions of an including library are
+ * removed.
+ */
+public class LibraryCache extends AbstractMap<VersionedIdentifier, Library> {
+
+    private ConcurrentMap<VersionedIdentifier, Library> libraries;
+
+    // The cached libraries that include a library, by the name of the included library
+    private Map<String, Set<VersionedIdentifier>> includedBy = new ConcurrentHashMap<>();
+
+    // Libraries removed from the cache whose includes are still indexed
+    private Queue<Map.Entry<VersionedIdentifier, Library>> removed = new ConcurrentLinkedQueue<>();
+
+    public LibraryCache(long maxSize) {
+        this.libraries = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .executor(Runnable::run)
+                .<VersionedIdentifier, Library>removalListener((key, library, cause) -> {
+                    // Evictions can happen on any thread, outside of the lock that
+                    // serializes puts and removes, so the index is only updated under
+                    // that lock. put re-indexes a replaced library itself.
+                    if (cause != RemovalCause.REPLACED && key != null && library != null) {
+                        this.removed.add(new SimpleImmutableEntry<>(key, library));
+                    }
+                })
+                .build()
+                .asMap();
+    }
+
+    @Override
+    public Library get(Object key) {
+        return this.libraries.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.libraries.containsKey(key);
+    }
+
+    // Puts and removes are serialized, so a library can not be indexed and cached
+    // between the removal of a library it includes and the removal of its dependents
+    @Override
+    public synchronized Library put(VersionedIdentifier key, Library library) {
+        this.forgetRemoved();
+        Library[] previous = new Library[1];
+        this.libraries.compute(key, (k, current) -> {
+            previous[0] = current;
+            this.forgetIncludes(k, current);
+            this.indexIncludes(k, library);
+            return library;
+        });
+        this.forgetRemoved();
+
+        return previous[0];
+    }
+
+    @Override
+    public synchronized Library remove(Object key) {
+        if (!(key instanceof VersionedIdentifier)) {
+            return null;
+        }
+
+        this.forgetRemoved();
+        Library library = this.libraries.remove(key);
+        this.removeIncluding(((VersionedIdentifier) key).getId(), new HashSet<>());
+        this.forgetRemoved();
+        return library;
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.libraries.clear();
+        this.includedBy.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public int size() {
+        return this.libraries.size();
+    }
+
+    // Removals through the views also remove the including libraries
+    @Override
+    public Set<Map.Entry<VersionedIdentifier, Library>> entrySet() {
+        return new AbstractSet<Map.Entry<VersionedIdentifier, Library>>() {
+            @Override
+            public Iterator<Map.Entry<VersionedIdentifier, Library>> iterator() {
+                Iterator<Map.Entry<VersionedIdentifier, Library>> entries = libraries.entrySet().iterator();
+                return new Iterator<Map.Entry<VersionedIdentifier, Library>>() {
+                    private Map.Entry<VersionedIdentifier, Library> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<VersionedIdentifier, Library> next() {
+                        this.current = entries.next();
+                        return this.current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (this.current == null) {
+                            throw new IllegalStateException();
+                        }
+                        LibraryCache.this.remove(this.current.getKey());
+                        this.current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return libraries.size();
+            }
+        };
+    }
+
+    private void removeIncluding(String name, Set<String> removedNames) {
+        if (name == null || !removedNames.add(name)) {
+            return;
+        }
+
+        Set<VersionedIdentifier> dependents = this.includedBy.remove(name);
+        if (dependents == null) {
+            return;
+        }
+
+        for (VersionedIdentifier dependent : dependents) {
+            this.libraries.remove(dependent);
+            this.removeIncluding(dependent.getId(), removedNames);
+        }
+    }
+
+    private void indexIncludes(VersionedIdentifier key, Library library) {
+        if (library.getIncludes() == null) {
+            return;
+        }
+
+        for (IncludeDef include : library.getIncludes().getDef()) {
+            this.includedBy.compute(include.getPath(), (name, dependents) -> {
+                Set<VersionedIdentifier> result = dependents != null ? dependents : ConcurrentHashMap.newKeySet();
+                result.add(key);
+                return result;
+            });
+        }
+    }
+
+    // A library cached again under the key of a removed one was indexed by its
+    // put, so it is indexed again in case it shares includes with the removed one
+    private void forgetRemoved() {
+        Map.Entry<VersionedIdentifier, Library> entry;
+        while ((entry = this.removed.poll()) != null) {
+            this.forgetIncludes(entry.getKey(), entry.getValue());
+            Library current = this.libraries.get(entry.getKey());
+            if (current != null) {
+                this.indexIncludes(entry.getKey(), current);
+            }
+        }
+    }
+
+    // Names no cached library includes any more are dropped from the index
+    private void forgetIncludes(VersionedIdentifier key, Library library) {
+        if (key == null || library == null || library.getIncludes() == null) {
+            return;
+        }
+
+        for (IncludeDef include : library.getIncludes().getDef()) {
+            this.includedBy.computeIfPresent(include.getPath(), (name, dependents) -> {
+                dependents.remove(key);
+                return dependents.isEmpty() ? null : dependents;
+            });
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expands the value sets of a library and the libraries it includes before
+ * they are evaluated, several at a time, so the terminology provider has them
+ * cached when the first patient needs them.
+ *
+ * A value set that fails to expand is logged and left to fail again when the
+ * evaluation uses it.
+ */
+public class TerminologyWarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TerminologyWarmer.class);
+
+    private TerminologyProvider terminologyProvider;
+    private int threadCount;
+
+    public TerminologyWarmer(TerminologyProvider terminologyProvider, int threadCount) {
+        this.terminologyProvider = terminologyProvider;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    public WarmUpResult warm(Library library, LibraryLoader libraryLoader) {
+        long start = System.currentTimeMillis();
+        List<ValueSetDef> valueSets = getValueSetDefs(library, libraryLoader);
+
+        int failureCount = 0;
+        ExecutorService executor = Executors
+                .newFixedThreadPool(Math.min(this.threadCount, Math.max(1, valueSets.size())));
+        try {
+            Map<String, Future<?>> expansions = new LinkedHashMap<>();
+            for (ValueSetDef valueSet : valueSets) {
+                ValueSetInfo valueSetInfo = new ValueSetInfo().withId(valueSet.getId())
+                        .withVersion(valueSet.getVersion());
+                expansions.put(valueSet.getId(),
+                        executor.submit(() -> this.terminologyProvider.expand(valueSetInfo)));
+            }
+
+            for (Map.Entry<String, Future<?>> expansion : expansions.entrySet()) {
+                try {
+                    expansion.getValue().get();
+                } catch (ExecutionException e) {
+                    failureCount++;
+                    logger.warn("Unable to expand value set {}", expansion.getKey(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Terminology warm-up was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Expanded {} value sets in {} ms, {} failed", valueSets.size(), elapsed, failureCount);
+
+        return new WarmUpResult(valueSets.size(), failureCount, elapsed);
+    }
+
+    /**
+     * @return the value sets defined by the library and the libraries it
+     *         includes, once per id
+     */
+    public static List<ValueSetDef> getValueSetDefs(Library library, LibraryLoader libraryLoader) {
+        List<ValueSetDef> valueSets = new ArrayList<>();
+        collectValueSetDefs(library, libraryLoader, new HashSet<>(), new HashSet<>(), valueSets);
+        return valueSets;
+    }
+
+    private static void collectValueSetDefs(Library library, LibraryLoader libraryLoader, Set<String> visitedLibraries,
+            Set<String> valueSetIds, List<ValueSetDef> valueSets) {
+        VersionedIdentifier identifier = library.getIdentifier();
+        if (identifier != null && !visitedLibraries.add(identifier.getId() + "|" + identifier.getVersion())) {
+            return;
+        }
+
+        if (library.getValueSets() != null) {
+            for (ValueSetDef valueSet : library.getValueSets().getDef()) {
+                if (valueSetIds.add(valueSet.getId())) {
+                    valueSets.add(valueSet);
+                }
+            }
+        }
+
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                Library includedLibrary = libraryLoader.load(
+                        new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+                if (includedLibrary != null) {
+                    collectValueSetDefs(includedLibrary, libraryLoader, visitedLibraries, valueSetIds, valueSets);
+                }
+            }
+        }
+    }
+
+    public static class WarmUpResult {
+        private int valueSetCount;
+        private int failureCount;
+        private long elapsedMillis;
+
+        public WarmUpResult(int valueSetCount, int failureCount, long elapsedMillis) {
+            this.valueSetCount = valueSetCount;
+            this.failureCount = failureCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getValueSetCount() {
+            return this.valueSetCount;
+        }
+
+        public int getFailureCount() {
+            return this.failureCount;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+    }
+}
@@ -6,10 +6,13 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.util.JAXBSource;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
@@ -18,6 +21,8 @@ import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 
 public class TranslatorHelper {
 
+    private static volatile JAXBContext elmContext;
+
     public static Library readLibrary(InputStream xmlStream) {
         try {
             return CqlLibraryReader.read(xmlStream);
@@ -67,6 +72,17 @@ public class TranslatorHelper {
         return translator;
     }
 
+    public static CqlTranslator getTranslator(InputStream cqlStream, LibraryManager libraryManager,
+            ModelManager modelManager, CqlTranslatorOptions translatorOptions) {
+        try {
+            return CqlTranslator.fromStream(cqlStream, modelManager, libraryManager,
+                    translatorOptions.getOptions().toArray(new CqlTranslator.Options[0]));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                    String.format("Errors occurred translating library: %s", e.getMessage()));
+        }
+    }
+
     public static Library translateLibrary(String cql, LibraryManager libraryManager, ModelManager modelManager) {
         return translateLibrary(new ByteArrayInputStream(cql.getBytes(StandardCharsets.UTF_8)), libraryManager,
                 modelManager);
@@ -75,10 +91,39 @@ public class TranslatorHelper {
     public static Library translateLibrary(InputStream cqlStream, LibraryManager libraryManager,
             ModelManager modelManager) {
         CqlTranslator translator = getTranslator(cqlStream, libraryManager, modelManager);
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return translateLibrary(translator);
     }
 
     public static Library translateLibrary(CqlTranslator translator) {
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return toExecutionLibrary(translator.toELM());
+    }
+
+    /**
+     * Converts a translated library to the engine's execution model in memory.
+     * The engine builds its executable elements while unmarshalling, so the
+     * translated library is streamed straight into its reader instead of being
+     * written to and parsed from an ELM xml string.
+     */
+    public static Library toExecutionLibrary(org.hl7.elm.r1.Library library) {
+        try {
+            return CqlLibraryReader.read(
+                    new JAXBSource(getElmContext(), new org.hl7.elm.r1.ObjectFactory().createLibrary(library)));
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM: " + e.getMessage());
+        }
+    }
+
+    // Creating a JAXBContext is expensive and the context is thread-safe
+    private static JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            synchronized (TranslatorHelper.class) {
+                if (elmContext == null) {
+                    elmContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class,
+                            org.hl7.cql_annotations.r1.Annotation.class);
+                }
+            }
+        }
+
+        return elmContext;
     }
 }
\ No newline at end of file
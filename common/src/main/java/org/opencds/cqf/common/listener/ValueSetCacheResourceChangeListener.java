@@ -0,0 +1,143 @@
+package org.opencds.cqf.common.listener;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.providers.ExpansionStore;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Evicts the cached expansions of the ValueSets that changed, rather than the
+ * whole terminology cache.
+ *
+ * Expansions are cached by the identifier CQL uses for the value set, which
+ * is its url, url|version, urn:oid or resource id. The listener remembers
+ * the identifiers of each ValueSet it has seen, so it can still evict a
+ * ValueSet whose url changed or that was deleted. If it does not know the
+ * identifiers of a deleted ValueSet, or a ValueSet can not be read, the whole
+ * cache is cleared. Stored expansions are evicted the same way.
+ */
+public class ValueSetCacheResourceChangeListener implements IResourceChangeListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetCacheResourceChangeListener.class);
+
+    private IFhirResourceDao<?> valueSetDao;
+    private Map<String, Iterable<Code>> terminologyCache;
+    private ExpansionStore expansionStore;
+    private FhirTerser terser;
+
+    // The cache keys of each ValueSet, by resource id
+    private Map<String, Set<String>> cacheKeysById = new ConcurrentHashMap<>();
+
+    public ValueSetCacheResourceChangeListener(IFhirResourceDao<?> valueSetDao,
+            Map<String, Iterable<Code>> terminologyCache, ExpansionStore expansionStore) {
+        this.valueSetDao = valueSetDao;
+        this.terminologyCache = terminologyCache;
+        this.expansionStore = expansionStore;
+        this.terser = valueSetDao.getContext().newTerser();
+    }
+
+    @Override
+    public void handleInit(Collection<IIdType> theResourceIds) {
+        // Intentionally empty. The identifiers of a ValueSet are looked up when it changes.
+    }
+
+    @Override
+    public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+        if (theResourceChangeEvent == null) {
+            return;
+        }
+
+        Set<String> cacheKeys = new HashSet<>();
+        try {
+            addCacheKeys(theResourceChangeEvent.getCreatedResourceIds(), cacheKeys, false);
+            addCacheKeys(theResourceChangeEvent.getUpdatedResourceIds(), cacheKeys, false);
+            addCacheKeys(theResourceChangeEvent.getDeletedResourceIds(), cacheKeys, true);
+        } catch (Exception e) {
+            logger.warn("Unable to find the changed ValueSets, clearing the terminology cache", e);
+            this.terminologyCache.clear();
+            this.expansionStore.clear();
+            return;
+        }
+
+        // Versioned keys, url|version, are evicted along with their url
+        Predicate<String> changed = key -> cacheKeys.contains(key)
+                || (key.contains("|") && cacheKeys.contains(key.substring(0, key.indexOf('|'))));
+        this.terminologyCache.keySet().removeIf(changed);
+        this.expansionStore.removeIf(changed);
+    }
+
+    private void addCacheKeys(List<IIdType> ids, Set<String> cacheKeys, boolean deleted) {
+        if (ids == null) {
+            return;
+        }
+
+        for (IIdType id : ids) {
+            String idPart = id.getIdPart();
+            Set<String> previousKeys = this.cacheKeysById.remove(idPart);
+            if (previousKeys != null) {
+                cacheKeys.addAll(previousKeys);
+            }
+
+            if (deleted) {
+                if (previousKeys == null) {
+                    throw new IllegalStateException(
+                            String.format("The identifiers of deleted ValueSet %s are not known", idPart));
+                }
+                continue;
+            }
+
+            IBaseResource valueSet = this.valueSetDao.read(id.toUnqualifiedVersionless());
+            if (previousKeys == null && valueSet.getIdElement().isVersionIdPartValidLong()
+                    && valueSet.getIdElement().getVersionIdPartAsLong() > 1) {
+                // The url may have changed since the previous version was cached
+                IIdType previousId = valueSet.getIdElement().toUnqualifiedVersionless()
+                        .withVersion(Long.toString(valueSet.getIdElement().getVersionIdPartAsLong() - 1));
+                cacheKeys.addAll(getCacheKeys(idPart, this.valueSetDao.read(previousId)));
+            }
+
+            Set<String> keys = getCacheKeys(idPart, valueSet);
+            this.cacheKeysById.put(idPart, keys);
+            cacheKeys.addAll(keys);
+        }
+    }
+
+    private Set<String> getCacheKeys(String idPart, IBaseResource valueSet) {
+        Set<String> keys = new HashSet<>();
+        keys.add(idPart);
+        keys.add("ValueSet/" + idPart);
+
+        String url = this.terser.getSinglePrimitiveValueOrNull(valueSet, "url");
+        if (url != null) {
+            keys.add(url);
+            String version = this.terser.getSinglePrimitiveValueOrNull(valueSet, "version");
+            if (version != null) {
+                keys.add(url + "|" + version);
+            }
+        }
+
+        for (IBase identifier : this.terser.getValues(valueSet, "identifier")) {
+            String value = this.terser.getSinglePrimitiveValueOrNull(identifier, "value");
+            if (value != null && value.startsWith("urn:oid:")) {
+                keys.add(value);
+            }
+        }
+
+        return keys;
+    }
+}
@@ -1,6 +1,10 @@
 package org.opencds.cqf.common.providers;
 
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
@@ -10,11 +14,18 @@ public class CacheAwareTerminologyProvider implements TerminologyProvider {
 
     private TerminologyProvider innerTerminologyProvider;
 
-    private Map<String, Iterable<Code>> globalCodeCacheByUrl;
+    private AsyncCache<String, Iterable<Code>> globalCodeCacheByUrl;
+
+    private ExpansionStore expansionStore;
+
+    public CacheAwareTerminologyProvider(AsyncCache<String, Iterable<Code>> globalCodeCacheByUrl, TerminologyProvider innerTerminologyProvider) {
+        this(globalCodeCacheByUrl, innerTerminologyProvider, new ExpansionStore(null));
+    }
 
-    public CacheAwareTerminologyProvider(Map<String, Iterable<Code>> globalCodeCacheByUrl, TerminologyProvider innerTerminologyProvider) {
+    public CacheAwareTerminologyProvider(AsyncCache<String, Iterable<Code>> globalCodeCacheByUrl, TerminologyProvider innerTerminologyProvider, ExpansionStore expansionStore) {
         this.globalCodeCacheByUrl = globalCodeCacheByUrl;
         this.innerTerminologyProvider = innerTerminologyProvider;
+        this.expansionStore = expansionStore;
     }
 
     @Override
@@ -24,6 +35,10 @@ public class CacheAwareTerminologyProvider implements TerminologyProvider {
             return false;
         }
 
+        if (codes instanceof ValueSetExpansion) {
+            return ((ValueSetExpansion) codes).contains(code);
+        }
+
         for (Code c : codes) {
             if (c.equivalent(code)) {
                 return true;
@@ -35,17 +50,51 @@ public class CacheAwareTerminologyProvider implements TerminologyProvider {
 
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) {
-        if (this.globalCodeCacheByUrl.containsKey(valueSet.getId())) {
-            return this.globalCodeCacheByUrl.get(valueSet.getId());
+        // Concurrent misses for a value set share the future of the first one, which
+        // loads the expansion on its own thread. A failed or empty load is not kept.
+        CompletableFuture<Iterable<Code>> load = new CompletableFuture<>();
+        CompletableFuture<Iterable<Code>> expansion = this.globalCodeCacheByUrl.get(valueSet.getId(),
+                (key, executor) -> load);
+        if (expansion == load) {
+            // Any failure, Errors included, must complete the future or the
+            // threads waiting on it would block forever
+            try {
+                load.complete(this.load(valueSet));
+            } catch (Throwable e) {
+                load.completeExceptionally(e);
+            }
         }
 
-        Iterable<Code> codes = this.innerTerminologyProvider.expand(valueSet);
+        try {
+            return expansion.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
 
+    private Iterable<Code> load(ValueSetInfo valueSet) {
+        Iterable<Code> codes = this.expansionStore.get(valueSet.getId());
         if (codes != null) {
-            this.globalCodeCacheByUrl.put(valueSet.getId(), codes);
+            return new ValueSetExpansion(codes);
+        }
+
+        // Taken before expanding, so an expansion that races with a change
+        // to the value set is not stored
+        long generation = this.expansionStore.getGeneration();
+        codes = this.innerTerminologyProvider.expand(valueSet);
+        if (codes == null) {
+            return null;
         }
 
-        return codes;
+        ValueSetExpansion expansion = new ValueSetExpansion(codes);
+        this.expansionStore.put(valueSet.getId(), expansion, generation);
+        return expansion;
     }
 
     @Override
@@ -0,0 +1,267 @@
+package org.opencds.cqf.common.providers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps value set expansions on disk so they survive restarts.
+ *
+ * Each expansion is a file named after the hash of its key, the url or
+ * url|version of the value set. The file starts with the key and a SHA-256
+ * hash of the codes that follow it, and is read through a memory map. A file
+ * whose key or hash does not match is treated as missing and removed.
+ *
+ * Every removal starts a new generation. An expansion is only stored if no
+ * removal happened since the generation it was computed in, so an expansion
+ * started before its value set changed is not kept.
+ *
+ * A store without a directory keeps nothing.
+ */
+public class ExpansionStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpansionStore.class);
+
+    private static final int MAGIC = 0x45585041; // "EXPA"
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".expansion";
+
+    private Path directory;
+
+    // Guarded by this
+    private long generation;
+
+    public ExpansionStore(Path directory) {
+        this.directory = directory;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                logger.warn("Unable to create expansion store at {}, expansions will not be stored", directory, e);
+                this.directory = null;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.directory != null;
+    }
+
+    /**
+     * @return the generation to pass to put for an expansion computed from now on
+     */
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return the stored codes of the value set, or null if they are not stored
+     */
+    public List<Code> get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || !key.equals(readString(buffer))) {
+                throw new IOException("Unexpected header");
+            }
+
+            byte[] hash = new byte[buffer.getInt()];
+            buffer.get(hash);
+            ByteBuffer codes = buffer.slice();
+            if (!Arrays.equals(hash, hash(codes.duplicate()))) {
+                throw new IOException("Content hash does not match");
+            }
+
+            int count = codes.getInt();
+            List<Code> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(new Code().withSystem(readString(codes)).withVersion(readString(codes))
+                        .withCode(readString(codes)).withDisplay(readString(codes)));
+            }
+
+            return result;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Discarding unreadable stored expansion of {}", key, e);
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the codes of the value set, unless stored expansions were removed
+     * since the given generation.
+     */
+    public void put(String key, Iterable<Code> codes, long generation) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Path file = getFile(key);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            DataOutputStream contentOutput = new DataOutputStream(content);
+            List<Code> codeList = new ArrayList<>();
+            codes.forEach(codeList::add);
+            contentOutput.writeInt(codeList.size());
+            for (Code code : codeList) {
+                writeString(contentOutput, code.getSystem());
+                writeString(contentOutput, code.getVersion());
+                writeString(contentOutput, code.getCode());
+                writeString(contentOutput, code.getDisplay());
+            }
+            contentOutput.flush();
+            byte[] contentBytes = content.toByteArray();
+            byte[] hash = hash(ByteBuffer.wrap(contentBytes));
+
+            Path temp = Files.createTempFile(this.directory, "expansion", ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temp))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(FORMAT_VERSION);
+                    writeString(output, key);
+                    output.writeInt(hash.length);
+                    output.write(hash);
+                    output.write(contentBytes);
+                }
+
+                synchronized (this) {
+                    if (generation != this.generation) {
+                        logger.debug("Not storing the expansion of {}, stored expansions were removed while it was computed", key);
+                        return;
+                    }
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                delete(temp);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to store the expansion of {}", key, e);
+        }
+    }
+
+    /**
+     * Removes the stored expansions whose key matches the filter.
+     */
+    public synchronized void removeIf(Predicate<String> filter) {
+        this.generation++;
+        if (!isEnabled()) {
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String key = readKey(file);
+                if (key == null || filter.test(key)) {
+                    delete(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to remove stored expansions", e);
+        }
+    }
+
+    public void clear() {
+        this.removeIf(x -> true);
+    }
+
+    private String readKey(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            return readString(buffer);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private Path getFile(String key) {
+        return this.directory.resolve(toHex(sha256(key.getBytes(StandardCharsets.UTF_8))) + EXTENSION);
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete stored expansion {}", file, e);
+        }
+    }
+
+    // Strings are a length, -1 for null, followed by their UTF-8 bytes
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hash(ByteBuffer content) {
+        MessageDigest digest = newDigest();
+        digest.update(content);
+        return digest.digest();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
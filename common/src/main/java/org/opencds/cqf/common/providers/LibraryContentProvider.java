@@ -2,6 +2,8 @@ package org.opencds.cqf.common.providers;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.function.Function;
 
 import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
@@ -12,19 +14,34 @@ import ca.uhn.fhir.cql.common.provider.LibraryResolutionProvider;
 
 /**
  * Created by Christopher on 1/12/2017.
+ *
+ * Also serves the ELM attached to a library, as application/elm+json or
+ * application/elm+xml, when the attachment records the hash of the CQL it was
+ * compiled from and that hash matches the library's current CQL. The library
+ * loader then uses the ELM instead of translating the CQL.
  */
 public class LibraryContentProvider<LibraryType, AttachmentType>
         implements org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider {
 
+    public static final String SOURCE_HASH_EXTENSION_URL = "http://opencds.org/fhir/StructureDefinition/cql-source-hash";
+
     private FhirLibrarySourceProvider innerProvider;
     private LibraryResolutionProvider<LibraryType> provider;
     private Function<LibraryType, Iterable<AttachmentType>> getAttachments;
     private Function<AttachmentType, String> getContentType;
     private Function<AttachmentType, byte[]> getContent;
+    private Function<AttachmentType, String> getSourceHash;
 
     public LibraryContentProvider(LibraryResolutionProvider<LibraryType> provider,
             Function<LibraryType, Iterable<AttachmentType>> getAttachments,
             Function<AttachmentType, String> getContentType, Function<AttachmentType, byte[]> getContent) {
+        this(provider, getAttachments, getContentType, getContent, x -> null);
+    }
+
+    public LibraryContentProvider(LibraryResolutionProvider<LibraryType> provider,
+            Function<LibraryType, Iterable<AttachmentType>> getAttachments,
+            Function<AttachmentType, String> getContentType, Function<AttachmentType, byte[]> getContent,
+            Function<AttachmentType, String> getSourceHash) {
 
         this.innerProvider = new FhirLibrarySourceProvider();
 
@@ -32,6 +49,7 @@ public class LibraryContentProvider<LibraryType, AttachmentType>
         this.getAttachments = getAttachments;
         this.getContentType = getContentType;
         this.getContent = getContent;
+        this.getSourceHash = getSourceHash;
     }
 
     @Override
@@ -57,6 +75,59 @@ public class LibraryContentProvider<LibraryType, AttachmentType>
             return this.getLibrarySource(libraryIdentifier);
         }
 
+        if (libraryContentType == LibraryContentType.JSON) {
+            return this.getElm(libraryIdentifier, "application/elm+json");
+        }
+
+        if (libraryContentType == LibraryContentType.XML) {
+            return this.getElm(libraryIdentifier, "application/elm+xml");
+        }
+
+        return null;
+    }
+
+    private InputStream getElm(VersionedIdentifier versionedIdentifier, String contentType) {
+        try {
+            LibraryType lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(),
+                    versionedIdentifier.getVersion());
+            if (lib == null) {
+                return null;
+            }
+
+            String sourceHash = null;
+            AttachmentType elm = null;
+            for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+                String attachmentContentType = this.getContentType.apply(attachment);
+                if ("text/cql".equals(attachmentContentType)) {
+                    sourceHash = getSourceHash(this.getContent.apply(attachment));
+                } else if (contentType.equals(attachmentContentType)) {
+                    elm = attachment;
+                }
+            }
+
+            // ELM compiled from an earlier version of the CQL is ignored
+            if (elm != null && sourceHash != null && sourceHash.equals(this.getSourceHash.apply(elm))) {
+                return new ByteArrayInputStream(this.getContent.apply(elm));
+            }
+        } catch (Exception e) {
+        }
+
         return null;
     }
+
+    /**
+     * @return the hash recorded on ELM attachments for the CQL they were
+     *         compiled from
+     */
+    public static String getSourceHash(byte[] cql) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(cql)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
 }
\ No newline at end of file
@@ -1,9 +1,7 @@
 package org.opencds.cqf.common.providers;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -19,7 +17,7 @@ import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
-    private Map<String, List<Code>> cache = new HashMap<>();
+    private RemoteTerminologyCache cache;
 
     public R4ApelonFhirTerminologyProvider() {
         super();
@@ -29,14 +27,18 @@ public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
         super(fhirClient);
     }
 
+    // Value set urls resolved from identifiers are kept in the cache
+    public R4ApelonFhirTerminologyProvider(IGenericClient fhirClient, RemoteTerminologyCache cache) {
+        super(fhirClient);
+        this.cache = cache;
+    }
+
     @Override
     public Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
-        String id = valueSet.getId();
-        if (this.cache.containsKey(id)) {
-            return this.cache.get(id);
-        }
-
-        String url = this.resolveByIdentifier(valueSet);
+        String url = this.cache != null
+                ? this.cache.getValueSetUrl(this.getFhirClient().getServerBase(), valueSet.getId(),
+                        () -> this.resolveByIdentifier(valueSet))
+                : this.resolveByIdentifier(valueSet);
 
         Parameters respParam = this.getFhirClient().operation().onType(ValueSet.class).named("expand")
                 .withSearchParameter(Parameters.class, "url", new StringParam(url))
@@ -50,7 +52,6 @@ public class R4ApelonFhirTerminologyProvider extends R4FhirTerminologyProvider {
             codes.add(nextCode);
         }
 
-        this.cache.put(id, codes);
         return codes;
     }
 
@@ -0,0 +1,42 @@
+package org.opencds.cqf.common.providers;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * Serves the expansions of a remote terminology server from a
+ * {@link RemoteTerminologyCache}, so they are only fetched once across
+ * requests.
+ */
+public class RemoteCachingTerminologyProvider implements TerminologyProvider {
+
+    private TerminologyProvider innerTerminologyProvider;
+    private String endpoint;
+    private RemoteTerminologyCache cache;
+
+    public RemoteCachingTerminologyProvider(TerminologyProvider innerTerminologyProvider, String endpoint,
+            RemoteTerminologyCache cache) {
+        this.innerTerminologyProvider = innerTerminologyProvider;
+        this.endpoint = endpoint;
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean in(Code code, ValueSetInfo valueSet) {
+        ValueSetExpansion codes = this.expand(valueSet);
+        return codes != null && codes.contains(code);
+    }
+
+    @Override
+    public ValueSetExpansion expand(ValueSetInfo valueSet) {
+        return this.cache.getExpansion(this.endpoint, valueSet,
+                () -> this.innerTerminologyProvider.expand(valueSet));
+    }
+
+    @Override
+    public Code lookup(Code code, CodeSystemInfo codeSystem) {
+        return this.innerTerminologyProvider.lookup(code, codeSystem);
+    }
+}
@@ -0,0 +1,85 @@
+package org.opencds.cqf.common.providers;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+/**
+ * Expansions and value set urls resolved by remote terminology servers,
+ * shared by every request that uses the same server.
+ *
+ * Entries are keyed by the base url of the server, and expansions also by the
+ * version and code systems of the value set. They expire a while after they
+ * were loaded, since changes made on the remote server are not announced.
+ * Failed and empty loads are not cached.
+ */
+public class RemoteTerminologyCache {
+
+    private Cache<String, ValueSetExpansion> expansions;
+    private Cache<String, String> valueSetUrls;
+
+    public RemoteTerminologyCache(long maxCodes, Duration expireAfterWrite) {
+        this.expansions = Caffeine.newBuilder()
+                .maximumWeight(maxCodes)
+                .weigher((String key, ValueSetExpansion expansion) -> Math.max(1, expansion.size()))
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        this.valueSetUrls = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(expireAfterWrite)
+                .build();
+    }
+
+    /**
+     * @return the expansion of the value set, or null if the loader returned
+     *         null. An empty expansion is returned but not cached.
+     */
+    public ValueSetExpansion getExpansion(String endpoint, ValueSetInfo valueSet, Supplier<Iterable<Code>> loader) {
+        ValueSetExpansion[] loaded = new ValueSetExpansion[1];
+        ValueSetExpansion expansion = this.expansions.get(getKey(endpoint, getExpansionKey(valueSet)), x -> {
+            Iterable<Code> codes = loader.get();
+            if (codes == null) {
+                return null;
+            }
+
+            loaded[0] = new ValueSetExpansion(codes);
+            return loaded[0].size() > 0 ? loaded[0] : null;
+        });
+
+        return expansion != null ? expansion : loaded[0];
+    }
+
+    public String getValueSetUrl(String endpoint, String identifier, Supplier<String> resolver) {
+        return this.valueSetUrls.get(getKey(endpoint, identifier), x -> resolver.get());
+    }
+
+    // Versions and code system restrictions of a value set expand differently
+    private String getExpansionKey(ValueSetInfo valueSet) {
+        StringBuilder key = new StringBuilder(valueSet.getId());
+        if (valueSet.getVersion() != null) {
+            key.append("|").append(valueSet.getVersion());
+        }
+
+        if (valueSet.getCodeSystems() != null) {
+            for (CodeSystemInfo codeSystem : valueSet.getCodeSystems()) {
+                key.append(" ").append(codeSystem.getId());
+                if (codeSystem.getVersion() != null) {
+                    key.append("|").append(codeSystem.getVersion());
+                }
+            }
+        }
+
+        return key.toString();
+    }
+
+    private String getKey(String endpoint, String id) {
+        return endpoint + " " + id;
+    }
+}
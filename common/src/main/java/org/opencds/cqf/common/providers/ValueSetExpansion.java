@@ -0,0 +1,100 @@
+package org.opencds.cqf.common.providers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * The codes of an expanded value set, indexed by system and code so
+ * membership tests do not scan the whole expansion.
+ *
+ * The index key folds case the same way String.equalsIgnoreCase does. The
+ * codes found under a key are then compared with {@link Code#equivalent}, so
+ * {@link #contains(Code)} gives the same answer as a scan of the expansion.
+ */
+public class ValueSetExpansion implements Iterable<Code> {
+
+    private List<Code> codes;
+    private Map<String, List<Code>> index = new HashMap<>();
+
+    public ValueSetExpansion(Iterable<Code> codes) {
+        List<Code> codeList = new ArrayList<>();
+        for (Code code : codes) {
+            codeList.add(code);
+            this.index.computeIfAbsent(getKey(code), x -> new ArrayList<>(1)).add(code);
+        }
+
+        this.codes = Collections.unmodifiableList(codeList);
+    }
+
+    /**
+     * @return whether the expansion has a code equivalent to the given one,
+     *         whatever the versions of the code systems
+     */
+    public boolean contains(Code code) {
+        if (code == null) {
+            return false;
+        }
+
+        for (Code candidate : this.index.getOrDefault(getKey(code), Collections.emptyList())) {
+            if (Boolean.TRUE.equals(candidate.equivalent(code))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Like {@link #contains(Code)}, but when both codes name a version of their
+     * code system the versions must also match.
+     */
+    public boolean containsVersion(Code code) {
+        if (code == null) {
+            return false;
+        }
+
+        for (Code candidate : this.index.getOrDefault(getKey(code), Collections.emptyList())) {
+            if (Boolean.TRUE.equals(candidate.equivalent(code))
+                    && (candidate.getVersion() == null || code.getVersion() == null
+                            || Objects.equals(candidate.getVersion(), code.getVersion()))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int size() {
+        return this.codes.size();
+    }
+
+    @Override
+    public Iterator<Code> iterator() {
+        return this.codes.iterator();
+    }
+
+    private static String getKey(Code code) {
+        return fold(code.getSystem()) + "|" + fold(code.getCode());
+    }
+
+    // Case folding per character, as done by String.equalsIgnoreCase
+    private static String fold(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        StringBuilder folded = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            folded.append(Character.toLowerCase(Character.toUpperCase(value.charAt(i))));
+        }
+
+        return folded.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * A {@link RetrieveProvider} that serves repeated retrieves from a
+ * {@link RetrieveCache} and only passes the first one of each to the wrapped
+ * provider.
+ */
+public class CachingRetrieveProvider implements RetrieveProvider {
+
+    private RetrieveProvider retrieveProvider;
+    private RetrieveCache cache;
+
+    public CachingRetrieveProvider(RetrieveProvider retrieveProvider, RetrieveCache cache) {
+        this.retrieveProvider = retrieveProvider;
+        this.cache = cache;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        String key = getKey(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+
+        List<Object> result = this.cache.get(key);
+        if (result == null) {
+            result = new ArrayList<>();
+            Iterable<Object> resources = this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType,
+                    templateId, codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+            if (resources != null) {
+                for (Object resource : resources) {
+                    result.add(resource);
+                }
+            }
+
+            result = Collections.unmodifiableList(result);
+            this.cache.put(key, result);
+        }
+
+        return result;
+    }
+
+    private String getKey(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        StringBuilder key = new StringBuilder();
+        key.append(context).append('|').append(contextPath).append('|').append(contextValue).append('|')
+                .append(dataType).append('|').append(templateId).append('|').append(codePath).append('|')
+                .append(valueSet).append('|').append(datePath).append('|').append(dateLowPath).append('|')
+                .append(dateHighPath);
+
+        key.append("|codes:");
+        if (codes != null) {
+            for (Code code : codes) {
+                key.append(code.getSystem()).append('#').append(code.getVersion()).append('#')
+                        .append(code.getCode()).append(',');
+            }
+        }
+
+        key.append("|dates:");
+        if (dateRange != null) {
+            key.append(dateRange.getLowClosed() ? '[' : '(').append(dateRange.getLow()).append(',')
+                    .append(dateRange.getHigh()).append(dateRange.getHighClosed() ? ']' : ')');
+        }
+
+        return key.toString();
+    }
+}
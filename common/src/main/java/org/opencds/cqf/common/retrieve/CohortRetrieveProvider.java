@@ -0,0 +1,196 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+
+/**
+ * A {@link RetrieveProvider} that retrieves the data of a whole
+ * {@link PatientCohort} at once.
+ *
+ * The first Patient context retrieve of a given data type, code path and value
+ * set for a patient of the cohort runs one search for all the patients of the
+ * cohort, e.g. Condition?patient=a,b,c&amp;code=..., and groups the results by
+ * patient. The same retrieve for the other patients of the cohort is then
+ * served from memory. Retrieves with explicit codes or a date range, for
+ * patients outside the cohort, or for types that cannot be searched by patient
+ * are passed to the wrapped provider.
+ */
+public class CohortRetrieveProvider implements RetrieveProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(CohortRetrieveProvider.class);
+
+    private JpaFhirRetrieveProvider retrieveProvider;
+    private PatientCohort cohort;
+    private DaoRegistry registry;
+    private ModelResolver modelResolver;
+
+    private int generation = -1;
+    // Retrieves of the current cohort by data type, code path, value set and context path
+    private Map<String, Map<String, List<Object>>> results = new HashMap<>();
+
+    public CohortRetrieveProvider(JpaFhirRetrieveProvider retrieveProvider, PatientCohort cohort,
+            DaoRegistry registry, ModelResolver modelResolver) {
+        this.retrieveProvider = retrieveProvider;
+        this.cohort = cohort;
+        this.registry = registry;
+        this.modelResolver = modelResolver;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        if ("Patient".equals(context) && contextPath != null && codes == null && dateRange == null
+                && this.cohort.contains(contextValue)) {
+            Map<String, List<Object>> patientResults = getCohortResults(contextPath, dataType, codePath, valueSet);
+            if (patientResults != null) {
+                return patientResults.getOrDefault(contextValue.toString(), Collections.emptyList());
+            }
+        }
+
+        return this.retrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+                codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    // Returns the results grouped by patient id, or null if the retrieve can not be done for the cohort
+    private Map<String, List<Object>> getCohortResults(String contextPath, String dataType, String codePath,
+            String valueSet) {
+        if (this.generation != this.cohort.getGeneration()) {
+            this.results.clear();
+            this.generation = this.cohort.getGeneration();
+        }
+
+        String key = dataType + "|" + codePath + "|" + valueSet + "|" + contextPath;
+        if (!this.results.containsKey(key)) {
+            this.results.put(key, searchCohort(contextPath, dataType, codePath, valueSet));
+        }
+
+        return this.results.get(key);
+    }
+
+    private Map<String, List<Object>> searchCohort(String contextPath, String dataType, String codePath,
+            String valueSet) {
+        if ((codePath == null) != (valueSet == null)
+                || (valueSet != null && this.retrieveProvider.getTerminologyProvider() == null)) {
+            return null;
+        }
+
+        FhirContext fhirContext = this.registry.getResourceDao(dataType).getContext();
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(dataType);
+
+        String patientParamName;
+        if (dataType.equals("Patient")) {
+            patientParamName = "_id";
+        } else {
+            RuntimeSearchParam patientParam = definition.getSearchParam("patient");
+            if (patientParam == null || patientParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+                return null;
+            }
+            patientParamName = patientParam.getName();
+        }
+
+        String codeParamName = null;
+        if (codePath != null) {
+            RuntimeSearchParam codeParam = getCodeSearchParam(definition, dataType, codePath);
+            if (codeParam == null) {
+                return null;
+            }
+            codeParamName = codeParam.getName();
+        }
+
+        // Synchronous like the retrieves it replaces, so it sees data written just
+        // before. The value set is split into queries by the retrieve provider.
+        Iterable<Object> resources = this.retrieveProvider.search(dataType, () -> {
+            SearchParameterMap map = SearchParameterMap.newSynchronous();
+            if (dataType.equals("Patient")) {
+                TokenOrListParam ids = new TokenOrListParam();
+                this.cohort.getPatientIds().forEach(x -> ids.add(null, x));
+                map.add(patientParamName, ids);
+            } else {
+                ReferenceOrListParam patients = new ReferenceOrListParam();
+                this.cohort.getPatientIds().forEach(x -> patients.addOr(new ReferenceParam("Patient/" + x)));
+                map.add(patientParamName, patients);
+            }
+            return map;
+        }, codeParamName, valueSet);
+
+        Map<String, List<Object>> patientResults = new HashMap<>();
+        for (Object resource : resources) {
+            String patientId = getPatientId(this.modelResolver.resolvePath(resource, contextPath));
+            if (patientId != null) {
+                patientResults.computeIfAbsent(patientId, x -> new ArrayList<>()).add(resource);
+            }
+        }
+
+        logger.debug("Retrieved {} resources for {} patients", dataType, this.cohort.getPatientIds().size());
+
+        return patientResults;
+    }
+
+    // The token search parameter of the type whose path is the code path, e.g. Condition.code
+    private RuntimeSearchParam getCodeSearchParam(RuntimeResourceDefinition definition, String dataType,
+            String codePath) {
+        String path = dataType + "." + codePath;
+        for (RuntimeSearchParam param : definition.getSearchParams()) {
+            if (param.getParamType() != RestSearchParameterTypeEnum.TOKEN || param.getPath() == null) {
+                continue;
+            }
+
+            for (String paramPath : param.getPath().split("\\|")) {
+                if (paramPath.trim().equals(path)) {
+                    return param;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private String getPatientId(Object value) {
+        if (value instanceof IBaseReference) {
+            value = ((IBaseReference) value).getReferenceElement();
+        }
+
+        if (value instanceof IIdType) {
+            IIdType id = (IIdType) value;
+            if (id.getResourceType() != null && !id.getResourceType().equals("Patient")) {
+                return null;
+            }
+            return id.getIdPart();
+        }
+
+        if (value instanceof IPrimitiveType) {
+            value = ((IPrimitiveType<?>) value).getValueAsString();
+        }
+
+        if (value instanceof String) {
+            String id = (String) value;
+            return id.startsWith("Patient/") ? id.substring("Patient/".length()) : id;
+        }
+
+        return null;
+    }
+}
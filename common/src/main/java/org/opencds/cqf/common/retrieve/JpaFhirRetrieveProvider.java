@@ -1,40 +1,128 @@
 package org.opencds.cqf.common.retrieve;
 
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.providers.ValueSetExpansion;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.springframework.stereotype.Component;
 
+import com.google.common.collect.Iterables;
+
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
 
 @Component
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
-
     DaoRegistry registry;
+    private SearchParameterResolver searchParameterResolver;
+    private QueryResultCache queryCache;
+    private int pageSize = HapiProperties.getRetrievePageSize();
+    private ExecutorService queryExecutor;
+    private int valueSetInThreshold = HapiProperties.getRetrieveValueSetInThreshold();
+
+    // Matches value sets with :in instead of a list of their codes
+    private JpaFhirRetrieveProvider valueSetInProvider;
+    // Whether each value set is stored on this server, so :in can be resolved by the database
+    private Map<String, Boolean> localValueSets = new ConcurrentHashMap<>();
 
     @Inject
     public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
         super(searchParameterResolver);
         this.registry = registry;
+        this.searchParameterResolver = searchParameterResolver;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        if (useValueSetIn(codes, valueSet)) {
+            return getValueSetInProvider().retrieve(context, contextPath, contextValue, dataType, templateId,
+                    codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+    }
+
+    /**
+     * Value sets with more codes than the threshold are matched by the database
+     * with :in rather than with a search for each of their codes. 0 always
+     * searches for the codes.
+     */
+    public void setValueSetInThreshold(int valueSetInThreshold) {
+        this.valueSetInThreshold = valueSetInThreshold;
+    }
+
+    private boolean useValueSetIn(Iterable<Code> codes, String valueSet) {
+        if (codes != null || valueSet == null || this.valueSetInThreshold <= 0 || !this.isExpandValueSets()
+                || this.getTerminologyProvider() == null) {
+            return false;
+        }
+
+        if (!this.localValueSets.computeIfAbsent(valueSet, this::isLocalValueSet)) {
+            return false;
+        }
+
+        // Expansions are cached by the terminology provider, so this does not expand the value set twice
+        Iterable<Code> expansion = this.getTerminologyProvider().expand(new ValueSetInfo().withId(valueSet));
+        int size = expansion instanceof ValueSetExpansion ? ((ValueSetExpansion) expansion).size()
+                : Iterables.size(expansion);
+        return size > this.valueSetInThreshold;
+    }
+
+    private boolean isLocalValueSet(String valueSet) {
+        String[] urlAndVersion = valueSet.split("\\|", 2);
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap map = ca.uhn.fhir.jpa.searchparam.SearchParameterMap
+                .newSynchronous().add("url", new UriParam(urlAndVersion[0]));
+        if (urlAndVersion.length > 1) {
+            map.add("version", new TokenParam(urlAndVersion[1]));
+        }
+
+        Integer size = this.registry.getResourceDao("ValueSet").search(map).size();
+        return size != null && size > 0;
+    }
+
+    private synchronized JpaFhirRetrieveProvider getValueSetInProvider() {
+        if (this.valueSetInProvider == null) {
+            JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(this.registry,
+                    this.searchParameterResolver);
+            provider.setTerminologyProvider(this.getTerminologyProvider());
+            provider.setExpandValueSets(false);
+            provider.setQueryCache(this.queryCache);
+            provider.setPageSize(this.pageSize);
+            provider.setQueryExecutor(this.queryExecutor);
+            provider.setValueSetInThreshold(0);
+            this.valueSetInProvider = provider;
+        }
+
+        return this.valueSetInProvider;
     }
 
     @Override
@@ -43,54 +131,198 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
             return Collections.emptyList();
         }
 
-        List<Object> objects = new ArrayList<>();
+        if (queries.size() == 1) {
+            return executeCachedQuery(dataType, queries.get(0));
+        }
+
+        List<Supplier<Iterable<Object>>> searches = new ArrayList<>();
         for (SearchParameterMap map : queries) {
-            objects.addAll(executeQuery(dataType, map));
+            searches.add(() -> executeCachedQuery(dataType, map));
+        }
+
+        return executeAll(dataType, searches);
+    }
+
+    // Runs the searches of one retrieve, concurrently if there is an executor
+    private Iterable<Object> executeAll(String dataType, List<Supplier<Iterable<Object>>> searches) {
+        List<Iterable<Object>> results;
+        if (this.queryExecutor != null) {
+            results = executeParallel(dataType, searches);
+        } else {
+            results = new ArrayList<>();
+            for (Supplier<Iterable<Object>> search : searches) {
+                results.add(search.get());
+            }
         }
 
-        return objects;
+        return distinct(results);
     }
 
-    protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
-        // TODO: Once HAPI breaks this out from the server dependencies
-        // we can include it on its own.
-        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = ca.uhn.fhir.jpa.searchparam.SearchParameterMap.newSynchronous();
+    private List<Iterable<Object>> executeParallel(String dataType, List<Supplier<Iterable<Object>>> searches) {
+        List<Future<List<Object>>> futures = new ArrayList<>();
+        for (Supplier<Iterable<Object>> search : searches) {
+            futures.add(this.queryExecutor.submit(() -> {
+                List<Object> resources = new ArrayList<>();
+                search.get().forEach(resources::add);
+                return resources;
+            }));
+        }
+
+        List<Iterable<Object>> results = new ArrayList<>();
         try {
+            for (Future<List<Object>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Retrieve of " + dataType + " was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error retrieving " + dataType, e.getCause());
+        } finally {
+            futures.forEach(x -> x.cancel(true));
+        }
 
-            Method[] methods = hapiMap.getClass().getDeclaredMethods();
-            List<Method> methodList = Arrays.asList(methods);
-            List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
-            Method method = puts.get(0);
-            method.setAccessible(true);
+        return results;
+    }
 
-            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-                method.invoke(hapiMap, entry.getKey(), entry.getValue());
+    // A resource matching several of the queries is only returned once, where it was first found
+    private List<Object> distinct(List<Iterable<Object>> results) {
+        Map<Object, Object> resources = new LinkedHashMap<>();
+        for (Iterable<Object> result : results) {
+            for (Object resource : result) {
+                Object key = resource;
+                if (resource instanceof IBaseResource && ((IBaseResource) resource).getIdElement().hasIdPart()) {
+                    key = ((IBaseResource) resource).getIdElement().toUnqualifiedVersionless().getValue();
+                }
+                resources.putIfAbsent(key, resource);
             }
+        }
 
-        } catch (Exception e) {
-            logger.warn("Error converting search parameter map", e);
+        return new ArrayList<>(resources.values());
+    }
+
+    /**
+     * Runs the queries of a retrieve that is split into several searches, e.g.
+     * by value set, concurrently on the executor.
+     */
+    public void setQueryExecutor(ExecutorService queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+
+    /**
+     * Sets the number of resources loaded at a time while the results of a
+     * query are iterated.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Searches with a query built by the caller, e.g. for a cohort of patients,
+     * and matches the code search parameter against the value set the way the
+     * retrieves of this provider do. Large value sets stored on this server are
+     * matched with :in, the codes of other value sets are split into queries of
+     * at most maxCodesPerQuery codes.
+     *
+     * @param query     creates the query without the code parameter, once per
+     *                  search. It should be synchronous, like the queries of
+     *                  retrieves.
+     * @param codeParam the name of the code search parameter, or null to search
+     *                  without a value set
+     */
+    public Iterable<Object> search(String dataType, Supplier<ca.uhn.fhir.jpa.searchparam.SearchParameterMap> query,
+            String codeParam, String valueSet) {
+        if (codeParam == null || valueSet == null) {
+            return executeSearch(dataType, query.get());
+        }
+        if (useValueSetIn(null, valueSet)) {
+            return getValueSetInProvider().search(dataType, query, codeParam, valueSet);
         }
 
-        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+        List<Supplier<Iterable<Object>>> searches = new ArrayList<>();
+        for (TokenOrListParam codes : getCodeParams(null, valueSet)) {
+            searches.add(() -> {
+                ca.uhn.fhir.jpa.searchparam.SearchParameterMap map = query.get();
+                map.add(codeParam, codes);
+                return executeSearch(dataType, map);
+            });
+        }
 
-        IBundleProvider bundleProvider = dao.search(hapiMap);
-        if (bundleProvider.size() == null) {
-            return resolveResourceList(bundleProvider.getAllResources());
+        if (searches.isEmpty()) {
+            return Collections.emptyList();
         }
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
+        if (searches.size() == 1) {
+            return searches.get(0).get();
         }
-        List<IBaseResource> resourceList = bundleProvider.getAllResources();
-        return resolveResourceList(resourceList);
+
+        return executeAll(dataType, searches);
+    }
+
+    /**
+     * Remembers the results of the queries run by this provider. The provider
+     * should then only be used for a single evaluation, since results are not
+     * refreshed when the data changes.
+     */
+    public void setQueryCache(QueryResultCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public QueryResultCache getQueryCache() {
+        return this.queryCache;
     }
 
-    public synchronized Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
-        List<Object> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add(clazz.cast(res));
+    protected Iterable<Object> executeCachedQuery(String dataType, SearchParameterMap map) {
+        if (this.queryCache == null) {
+            return executeQuery(dataType, map);
         }
-        // ret.addAll(resourceList);
-        return ret;
+
+        String key = getQueryKey(dataType, map);
+        Iterable<Object> result = this.queryCache.get(key);
+        if (result == null) {
+            result = executeQuery(dataType, map);
+            this.queryCache.put(key, result);
+        }
+
+        return result;
+    }
+
+    // The parameters of the query, and the values of each parameter, in a stable order
+    protected String getQueryKey(String dataType, SearchParameterMap map) {
+        FhirContext fhirContext = this.registry.getResourceDao(dataType).getContext();
+
+        TreeMap<String, List<String>> parameters = new TreeMap<>();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            List<String> andList = new ArrayList<>();
+            for (List<IQueryParameterType> orList : entry.getValue()) {
+                List<String> values = new ArrayList<>();
+                for (IQueryParameterType param : orList) {
+                    values.add((param.getQueryParameterQualifier() != null ? param.getQueryParameterQualifier() : "")
+                            + "=" + param.getValueAsQueryToken(fhirContext));
+                }
+                Collections.sort(values);
+                andList.add(String.join(",", values));
+            }
+            Collections.sort(andList);
+            parameters.put(entry.getKey(), andList);
+        }
+
+        return dataType + "?" + parameters.toString();
+    }
+
+    protected Iterable<Object> executeQuery(String dataType, SearchParameterMap map) {
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = SearchParameterMapTranslator.translate(map);
+
+        return executeSearch(dataType, hapiMap);
+    }
+
+    protected Iterable<Object> executeSearch(String dataType, ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap) {
+        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+
+        // Only the conversion of the results is paged, the search itself is synchronous
+        IBundleProvider bundleProvider = dao.search(hapiMap);
+        return new PagedResourceIterable(bundleProvider, this.pageSize);
     }
-}
\ No newline at end of file
+}
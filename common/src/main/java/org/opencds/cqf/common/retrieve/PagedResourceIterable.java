@@ -0,0 +1,85 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The results of a search, taken from the {@link IBundleProvider} one page at
+ * a time as they are iterated.
+ *
+ * A consumer that stops early, e.g. for exists or First, only takes the pages
+ * it has seen. Taken pages are kept so iterating the results again does not
+ * go back to the bundle provider.
+ */
+public class PagedResourceIterable implements Iterable<Object> {
+
+    private IBundleProvider bundleProvider;
+    private int pageSize;
+    private Integer size;
+    private List<Object> resources = new ArrayList<>();
+    private boolean complete;
+
+    public PagedResourceIterable(IBundleProvider bundleProvider, int pageSize) {
+        this.bundleProvider = bundleProvider;
+        this.pageSize = Math.max(1, pageSize);
+        this.size = bundleProvider.size();
+        this.complete = this.size != null && this.size == 0;
+    }
+
+    /**
+     * @return the number of results if the search knows it, null otherwise
+     */
+    public Integer size() {
+        return this.size;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return hasResource(this.index);
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getResource(this.index++);
+            }
+        };
+    }
+
+    private synchronized boolean hasResource(int index) {
+        while (index >= this.resources.size() && !this.complete) {
+            loadPage();
+        }
+
+        return index < this.resources.size();
+    }
+
+    private synchronized Object getResource(int index) {
+        return this.resources.get(index);
+    }
+
+    private void loadPage() {
+        int from = this.resources.size();
+        int to = this.size != null ? Math.min(from + this.pageSize, this.size) : from + this.pageSize;
+
+        List<IBaseResource> page = this.bundleProvider.getResources(from, to);
+        this.resources.addAll(page);
+
+        if (page.isEmpty() || (this.size != null && this.resources.size() >= this.size)) {
+            this.complete = true;
+        }
+    }
+}
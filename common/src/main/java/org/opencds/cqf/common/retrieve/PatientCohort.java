@@ -0,0 +1,40 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The patients an evaluation context is about to evaluate, so a
+ * {@link CohortRetrieveProvider} can retrieve their data together.
+ */
+public class PatientCohort {
+
+    private Set<String> patientIds = Collections.emptySet();
+    private int generation;
+
+    public void setPatientIds(Collection<String> patientIds) {
+        this.patientIds = Collections.unmodifiableSet(new LinkedHashSet<>(patientIds));
+        this.generation++;
+    }
+
+    public void clear() {
+        this.setPatientIds(Collections.emptySet());
+    }
+
+    public Set<String> getPatientIds() {
+        return this.patientIds;
+    }
+
+    public boolean contains(Object patientId) {
+        return patientId != null && this.patientIds.contains(patientId.toString());
+    }
+
+    /**
+     * @return a number that changes every time the patients change
+     */
+    public int getGeneration() {
+        return this.generation;
+    }
+}
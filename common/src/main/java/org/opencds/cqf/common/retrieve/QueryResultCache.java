@@ -0,0 +1,79 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of the queries run by a {@link JpaFhirRetrieveProvider}
+ * during one evaluation.
+ *
+ * The cache holds at most maxResources resources, an empty result counts as
+ * one. Paged results are weighed by the size of their search, the most they
+ * can hold once all their pages are loaded. Results whose size is not known
+ * are not cached, since they could grow past the bound. When the cache is
+ * full, the least recently used results are evicted first.
+ */
+public class QueryResultCache {
+
+    private int maxResources;
+    private int resourceCount;
+    private LinkedHashMap<String, Iterable<Object>> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+
+    public QueryResultCache(int maxResources) {
+        this.maxResources = maxResources;
+    }
+
+    public synchronized Iterable<Object> get(String key) {
+        Iterable<Object> result = this.results.get(key);
+        if (result != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+
+        return result;
+    }
+
+    public synchronized void put(String key, Iterable<Object> result) {
+        int weight = weigh(result);
+        if (weight < 0 || weight > this.maxResources) {
+            return;
+        }
+
+        Iterable<Object> previous = this.results.put(key, result);
+        if (previous != null) {
+            this.resourceCount -= weigh(previous);
+        }
+        this.resourceCount += weight;
+
+        Iterator<Map.Entry<String, Iterable<Object>>> eldest = this.results.entrySet().iterator();
+        while (this.resourceCount > this.maxResources && eldest.hasNext()) {
+            this.resourceCount -= weigh(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    // The number of resources the result can hold, or -1 if that is not known
+    private static int weigh(Iterable<Object> result) {
+        Integer size = null;
+        if (result instanceof Collection) {
+            size = ((Collection<?>) result).size();
+        } else if (result instanceof PagedResourceIterable) {
+            size = ((PagedResourceIterable) result).size();
+        }
+
+        return size != null ? Math.max(1, size) : -1;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+}
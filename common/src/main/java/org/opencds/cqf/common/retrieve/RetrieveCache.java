@@ -0,0 +1,47 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the results of the retrieves made for the current patient so they can
+ * be shared by every {@link CachingRetrieveProvider} that uses this cache, for
+ * example the data providers of several measures evaluated together.
+ *
+ * The owner of the cache calls {@link #clear()} when it moves on to the next
+ * patient. This class is not thread safe.
+ */
+public class RetrieveCache {
+
+    private Map<String, List<Object>> results = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    public List<Object> get(String key) {
+        List<Object> result = this.results.get(key);
+        if (result != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+
+        return result;
+    }
+
+    public void put(String key, List<Object> result) {
+        this.results.put(key, result);
+    }
+
+    public void clear() {
+        this.results.clear();
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getMisses() {
+        return this.misses;
+    }
+}
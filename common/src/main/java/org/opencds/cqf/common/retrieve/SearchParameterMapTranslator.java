@@ -0,0 +1,118 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.List;
+import java.util.Map;
+
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+
+import ca.uhn.fhir.model.api.IQueryParameterOr;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.NumberOrListParam;
+import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.param.QuantityOrListParam;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriOrListParam;
+import ca.uhn.fhir.rest.param.UriParam;
+
+/**
+ * Translates the search parameter maps built by the engine into the ones the
+ * HAPI JPA server searches with.
+ *
+ * Both maps are a list of AND-ed lists of OR-ed parameters per search
+ * parameter name. Each OR list is added to the HAPI map as the or-list
+ * parameter of its type.
+ */
+public final class SearchParameterMapTranslator {
+
+    private SearchParameterMapTranslator() {
+    }
+
+    /**
+     * The map is synchronous. The search neither reuses a cached search that
+     * may predate recent writes nor persists a search of its own.
+     *
+     * @throws IllegalArgumentException if the map holds a parameter the HAPI map
+     *                                  can not express, rather than searching
+     *                                  without it
+     */
+    public static ca.uhn.fhir.jpa.searchparam.SearchParameterMap translate(SearchParameterMap map) {
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = ca.uhn.fhir.jpa.searchparam.SearchParameterMap
+                .newSynchronous();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            String name = entry.getKey();
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("Search parameter map contains a parameter without a name");
+            }
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException(
+                        String.format("Search parameter %s does not have any values", name));
+            }
+
+            for (List<IQueryParameterType> orList : entry.getValue()) {
+                if (orList == null || orList.isEmpty() || orList.contains(null)) {
+                    throw new IllegalArgumentException(
+                            String.format("Search parameter %s contains an empty value", name));
+                }
+                if (orList.size() == 1) {
+                    hapiMap.add(name, orList.get(0));
+                } else {
+                    hapiMap.add(name, toOrList(name, orList));
+                }
+            }
+        }
+
+        return hapiMap;
+    }
+
+    // The OR-ed values as the HAPI or-list of their type
+    private static IQueryParameterOr<?> toOrList(String name, List<IQueryParameterType> values) {
+        Class<?> type = values.get(0).getClass();
+        for (IQueryParameterType value : values) {
+            if (value.getClass() != type) {
+                throw new IllegalArgumentException(
+                        String.format("Search parameter %s mixes values of different types", name));
+            }
+        }
+
+        if (type == TokenParam.class) {
+            TokenOrListParam orList = new TokenOrListParam();
+            values.forEach(x -> orList.addOr((TokenParam) x));
+            return orList;
+        } else if (type == ReferenceParam.class) {
+            ReferenceOrListParam orList = new ReferenceOrListParam();
+            values.forEach(x -> orList.addOr((ReferenceParam) x));
+            return orList;
+        } else if (type == StringParam.class) {
+            StringOrListParam orList = new StringOrListParam();
+            values.forEach(x -> orList.addOr((StringParam) x));
+            return orList;
+        } else if (type == DateParam.class) {
+            DateOrListParam orList = new DateOrListParam();
+            values.forEach(x -> orList.addOr((DateParam) x));
+            return orList;
+        } else if (type == UriParam.class) {
+            UriOrListParam orList = new UriOrListParam();
+            values.forEach(x -> orList.addOr((UriParam) x));
+            return orList;
+        } else if (type == QuantityParam.class) {
+            QuantityOrListParam orList = new QuantityOrListParam();
+            values.forEach(x -> orList.addOr((QuantityParam) x));
+            return orList;
+        } else if (type == NumberParam.class) {
+            NumberOrListParam orList = new NumberOrListParam();
+            values.forEach(x -> orList.addOr((NumberParam) x));
+            return orList;
+        }
+
+        throw new IllegalArgumentException(
+                String.format("Search parameter %s can not OR values of type %s", name, type.getSimpleName()));
+    }
+}
@@ -0,0 +1,118 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class LibraryCacheTest {
+
+    private LibraryCache cache = new LibraryCache(100);
+
+    @Test
+    public void testRemovesIncludingLibrariesTransitively() {
+        put("Measure", "1", "Common");
+        put("Common", "1", "FHIRHelpers");
+        put("FHIRHelpers", "4.0.1");
+        put("Other", "1");
+
+        this.cache.remove(id("FHIRHelpers", "4.0.1"));
+
+        assertFalse(this.cache.containsKey(id("FHIRHelpers", "4.0.1")));
+        assertFalse(this.cache.containsKey(id("Common", "1")));
+        assertFalse(this.cache.containsKey(id("Measure", "1")));
+        assertTrue(this.cache.containsKey(id("Other", "1")));
+        assertEquals(1, this.cache.size());
+    }
+
+    @Test
+    public void testRemovesAllVersionsOfIncludingLibraries() {
+        put("Measure", "1", "Common");
+        put("Measure", "2", "Common");
+        put("Common", "1");
+        put("Common", "2");
+
+        this.cache.remove(id("Common", "2"));
+
+        assertFalse(this.cache.containsKey(id("Measure", "1")));
+        assertFalse(this.cache.containsKey(id("Measure", "2")));
+        assertTrue(this.cache.containsKey(id("Common", "1")));
+    }
+
+    @Test
+    public void testReplacedLibraryIsReindexed() {
+        put("Measure", "1", "Common");
+        put("Measure", "1", "Other");
+        put("Common", "1");
+        put("Other", "1");
+
+        this.cache.remove(id("Common", "1"));
+        assertTrue(this.cache.containsKey(id("Measure", "1")));
+
+        this.cache.remove(id("Other", "1"));
+        assertFalse(this.cache.containsKey(id("Measure", "1")));
+    }
+
+    @Test
+    public void testIteratorRemovalRemovesIncludingLibraries() {
+        put("Measure", "1", "Common");
+        put("Common", "1");
+
+        Iterator<VersionedIdentifier> ids = this.cache.keySet().iterator();
+        while (ids.hasNext()) {
+            if (ids.next().getId().equals("Common")) {
+                ids.remove();
+            }
+        }
+
+        assertTrue(this.cache.isEmpty());
+    }
+
+    @Test
+    public void testLibraryCachedAgainAfterEvictionIsIndexed() {
+        LibraryCache small = new LibraryCache(10);
+        small.put(id("Measure", "1"), library("Measure", "1", "Common"));
+
+        // Fillers that are read more often than the measure end up evicting it
+        for (int i = 0; i < 10000 && small.containsKey(id("Measure", "1")); i++) {
+            VersionedIdentifier filler = id("Filler", Integer.toString(i % 20));
+            small.put(filler, library("Filler", filler.getVersion()));
+            for (int j = 0; j < 5; j++) {
+                small.get(filler);
+            }
+        }
+        assertFalse(small.containsKey(id("Measure", "1")));
+
+        small.put(id("Measure", "1"), library("Measure", "1", "Common"));
+        assertTrue(small.containsKey(id("Measure", "1")));
+
+        small.remove(id("Common", "1"));
+        assertFalse(small.containsKey(id("Measure", "1")));
+    }
+
+    private void put(String name, String version, String... includes) {
+        this.cache.put(id(name, version), library(name, version, includes));
+    }
+
+    private static Library library(String name, String version, String... includes) {
+        Library library = new Library().withIdentifier(id(name, version));
+        if (includes.length > 0) {
+            Library.Includes defs = new Library.Includes();
+            for (String include : includes) {
+                defs.getDef().add(new IncludeDef().withLocalIdentifier(include).withPath(include).withVersion("1"));
+            }
+            library.setIncludes(defs);
+        }
+        return library;
+    }
+
+    private static VersionedIdentifier id(String name, String version) {
+        return new VersionedIdentifier().withId(name).withVersion(version);
+    }
+}
@@ -0,0 +1,113 @@
+package org.opencds.cqf.common.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+public class ExpansionStoreTest {
+
+    private static final String URL = "http://example.org/ValueSet/diabetes";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Code> codes = Arrays.asList(
+            new Code().withSystem("http://snomed.info/sct").withCode("44054006").withDisplay("Diabetes type 2"),
+            new Code().withSystem("http://hl7.org/fhir/sid/icd-10").withCode("E11").withVersion("2019"));
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ExpansionStore store = new ExpansionStore(this.folder.getRoot().toPath());
+        store.put(URL, this.codes, store.getGeneration());
+
+        List<Code> stored = new ExpansionStore(this.folder.getRoot().toPath()).get(URL);
+
+        assertNotNull(stored);
+        assertEquals(2, stored.size());
+        for (int i = 0; i < this.codes.size(); i++) {
+            assertEquals(this.codes.get(i).getSystem(), stored.get(i).getSystem());
+            assertEquals(this.codes.get(i).getCode(), stored.get(i).getCode());
+            assertEquals(this.codes.get(i).getVersion(), stored.get(i).getVersion());
+            assertEquals(this.codes.get(i).getDisplay(), stored.get(i).getDisplay());
+        }
+        assertNull(store.get(URL + "|2"));
+    }
+
+    @Test
+    public void testRemoveIf() throws IOException {
+        ExpansionStore store = new ExpansionStore(this.folder.getRoot().toPath());
+        store.put(URL, this.codes, store.getGeneration());
+        store.put(URL + "|2", this.codes, store.getGeneration());
+        store.put("urn:oid:2.16.840.1", this.codes, store.getGeneration());
+
+        store.removeIf(key -> key.startsWith(URL));
+
+        assertNull(store.get(URL));
+        assertNull(store.get(URL + "|2"));
+        assertNotNull(store.get("urn:oid:2.16.840.1"));
+
+        store.clear();
+        assertNull(store.get("urn:oid:2.16.840.1"));
+    }
+
+    @Test
+    public void testDropsExpansionComputedBeforeRemoval() throws IOException {
+        ExpansionStore store = new ExpansionStore(this.folder.getRoot().toPath());
+        long generation = store.getGeneration();
+
+        store.removeIf(key -> key.equals(URL));
+        store.put(URL, this.codes, generation);
+
+        assertNull(store.get(URL));
+        assertEquals(0, countFiles());
+
+        store.put(URL, this.codes, store.getGeneration());
+        assertNotNull(store.get(URL));
+    }
+
+    @Test
+    public void testDiscardsCorruptExpansion() throws IOException {
+        ExpansionStore store = new ExpansionStore(this.folder.getRoot().toPath());
+        store.put(URL, this.codes, store.getGeneration());
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.folder.getRoot().toPath())) {
+            for (Path file : files) {
+                byte[] bytes = Files.readAllBytes(file);
+                bytes[bytes.length - 1] ^= 1;
+                Files.write(file, bytes);
+            }
+        }
+
+        assertNull(store.get(URL));
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void testStoreWithoutDirectoryKeepsNothing() {
+        ExpansionStore store = new ExpansionStore(null);
+        store.put(URL, this.codes, store.getGeneration());
+
+        assertFalse(store.isEnabled());
+        assertNull(store.get(URL));
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(this.folder.getRoot().toPath())) {
+            return files.count();
+        }
+    }
+}
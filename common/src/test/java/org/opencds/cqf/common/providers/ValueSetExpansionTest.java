@@ -0,0 +1,71 @@
+package org.opencds.cqf.common.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+public class ValueSetExpansionTest {
+
+    private static final String LOINC = "http://loinc.org";
+
+    private ValueSetExpansion expansion = new ValueSetExpansion(Arrays.asList(
+            new Code().withSystem(LOINC).withCode("1234-5").withVersion("2.68"),
+            new Code().withSystem(LOINC).withCode("ABC"),
+            new Code().withSystem("http://snomed.info/sct").withCode("1234-5")));
+
+    @Test
+    public void testContainsMatchesScan() {
+        List<Code> candidates = Arrays.asList(
+                new Code().withSystem(LOINC).withCode("1234-5"),
+                new Code().withSystem(LOINC).withCode("abc"),
+                new Code().withSystem("HTTP://LOINC.ORG").withCode("ABC"),
+                new Code().withSystem(LOINC).withCode("6789-0"),
+                new Code().withSystem("http://hl7.org/fhir/sid/icd-10").withCode("1234-5"),
+                new Code().withCode("1234-5"));
+
+        for (Code candidate : candidates) {
+            assertEquals(candidate.toString(), scan(candidate), this.expansion.contains(candidate));
+        }
+    }
+
+    @Test
+    public void testContainsIgnoresVersions() {
+        assertTrue(this.expansion.contains(new Code().withSystem(LOINC).withCode("1234-5").withVersion("2.70")));
+        assertFalse(this.expansion.contains(null));
+    }
+
+    @Test
+    public void testContainsVersion() {
+        assertTrue(this.expansion.containsVersion(new Code().withSystem(LOINC).withCode("1234-5").withVersion("2.68")));
+        assertTrue(this.expansion.containsVersion(new Code().withSystem(LOINC).withCode("1234-5")));
+        assertTrue(this.expansion.containsVersion(new Code().withSystem(LOINC).withCode("ABC").withVersion("2.70")));
+        assertFalse(this.expansion.containsVersion(new Code().withSystem(LOINC).withCode("1234-5").withVersion("2.70")));
+    }
+
+    @Test
+    public void testIteratesInOrder() {
+        List<Code> codes = new ArrayList<>();
+        this.expansion.forEach(codes::add);
+
+        assertEquals(3, this.expansion.size());
+        assertEquals("1234-5", codes.get(0).getCode());
+        assertEquals("ABC", codes.get(1).getCode());
+        assertEquals("http://snomed.info/sct", codes.get(2).getSystem());
+    }
+
+    private boolean scan(Code code) {
+        for (Code candidate : this.expansion) {
+            if (Boolean.TRUE.equals(candidate.equivalent(code))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class SearchParameterMapTranslatorTest {
+
+    @Test
+    public void testTranslatesSingleValuesAndOrLists() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("subject", new ReferenceParam("Patient/a"));
+        map.add("code", new TokenOrListParam().add("http://loinc.org", "1234-5").add("http://loinc.org", "6789-0"));
+
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = SearchParameterMapTranslator.translate(map);
+
+        assertTrue(hapiMap.isLoadSynchronous());
+        assertNull(hapiMap.getLoadSynchronousUpTo());
+
+        List<List<IQueryParameterType>> subject = hapiMap.get("subject");
+        assertEquals(1, subject.size());
+        assertEquals(1, subject.get(0).size());
+        assertEquals("Patient/a", ((ReferenceParam) subject.get(0).get(0)).getValue());
+
+        List<List<IQueryParameterType>> code = hapiMap.get("code");
+        assertEquals(1, code.size());
+        assertEquals(2, code.get(0).size());
+        assertEquals("1234-5", ((TokenParam) code.get(0).get(0)).getValue());
+        assertEquals("6789-0", ((TokenParam) code.get(0).get(1)).getValue());
+    }
+
+    @Test
+    public void testKeepsAndedValues() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("name", new StringParam("Ann"));
+        map.add("name", new StringParam("Bob"));
+
+        List<List<IQueryParameterType>> name = SearchParameterMapTranslator.translate(map).get("name");
+
+        assertEquals(2, name.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMixedTypes() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("code", new TokenOrListParam().add("http://loinc.org", "1234-5"));
+        map.get("code").get(0).add(new StringParam("1234-5"));
+
+        SearchParameterMapTranslator.translate(map);
+    }
+}
@@ -1,18 +1,25 @@
 package org.opencds.cqf.r4.config;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.providers.CacheAwareTerminologyProvider;
+import org.opencds.cqf.common.providers.ExpansionStore;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
@@ -27,14 +34,17 @@ import org.opencds.cqf.r4.providers.ApplyCqlOperationProvider;
 import org.opencds.cqf.r4.providers.CacheValueSetsProvider;
 import org.opencds.cqf.r4.providers.CodeSystemUpdateProvider;
 import org.opencds.cqf.r4.providers.CqlExecutionProvider;
+import org.opencds.cqf.r4.providers.LibraryCacheProvider;
 import org.opencds.cqf.r4.providers.LibraryOperationsProvider;
 import org.opencds.cqf.r4.providers.MeasureOperationsProvider;
 import org.opencds.cqf.r4.providers.ObservationProvider;
 import org.opencds.cqf.r4.providers.PlanDefinitionApplyProvider;
 import org.opencds.cqf.r4.providers.ProcessMessageProvider;
 import org.opencds.cqf.r4.providers.QuestionnaireProvider;
+import org.opencds.cqf.r4.providers.TerminologyCacheProvider;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -49,6 +59,8 @@ import ca.uhn.fhir.cql.r4.listener.ElmCacheResourceChangeListener;
 import ca.uhn.fhir.cql.r4.provider.JpaTerminologyProvider;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.config.BaseJavaConfigR4;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
@@ -112,10 +124,12 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
         classes.add(CacheValueSetsProvider.class);
         classes.add(CodeSystemUpdateProvider.class);
         classes.add(CqlExecutionProvider.class);
+        classes.add(LibraryCacheProvider.class);
         classes.add(LibraryOperationsProvider.class);
         classes.add(MeasureOperationsProvider.class);
         classes.add(PlanDefinitionApplyProvider.class);
         classes.add(ProcessMessageProvider.class);
+        classes.add(TerminologyCacheProvider.class);
 
         // The plugin API will need to a way to determine whether a particular
         // service should be registered
@@ -142,8 +156,8 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
 
     @Bean
     @Primary
-    public TerminologyProvider terminologyProvider(Map<String, Iterable<Code>> terminologyCache, JpaTerminologyProvider jpaTerminologyProvider) {
-        return new CacheAwareTerminologyProvider(terminologyCache, jpaTerminologyProvider);
+    public TerminologyProvider terminologyProvider(AsyncCache<String, Iterable<Code>> terminologyCodeCache, JpaTerminologyProvider jpaTerminologyProvider, ExpansionStore expansionStore) {
+        return new CacheAwareTerminologyProvider(terminologyCodeCache, jpaTerminologyProvider, expansionStore);
     }
 
     @Bean(name = "r4ModelResolver")
@@ -166,9 +180,22 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
 	}
 
 	@Bean
-	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(IResourceChangeListenerRegistry resourceChangeListenerRegistry, IFhirResourceDao<org.hl7.fhir.r4.model.Library> libraryDao,  Map<org.cqframework.cql.elm.execution.VersionedIdentifier, Library> globalLibraryCache) {
+	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(IResourceChangeListenerRegistry resourceChangeListenerRegistry, IFhirResourceDao<org.hl7.fhir.r4.model.Library> libraryDao,  Map<org.cqframework.cql.elm.execution.VersionedIdentifier, Library> globalLibraryCache, Cache<String, Library> compiledExpressionCache) {
 		ElmCacheResourceChangeListener listener = new ElmCacheResourceChangeListener(libraryDao, globalLibraryCache);
-		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Library", SearchParameterMap.newSynchronous(), listener, 1000);
+		// Compiled expressions include the changed library or a library that includes it
+		IResourceChangeListener compiledExpressionListener = new IResourceChangeListener() {
+			@Override
+			public void handleInit(Collection<IIdType> theResourceIds) {
+				listener.handleInit(theResourceIds);
+			}
+
+			@Override
+			public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+				listener.handleChange(theResourceChangeEvent);
+				compiledExpressionCache.invalidateAll();
+			}
+		};
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Library", SearchParameterMap.newSynchronous(), compiledExpressionListener, 1000);
 		return listener;
 	}
     
@@ -178,10 +205,11 @@ public class FhirServerConfigR4 extends BaseJavaConfigR4 {
 
     // TODO: Respect config options
     @Bean
-    public DataProvider dataProvider(ModelResolver modelResolver, DaoRegistry daoRegistry, SearchParameterResolver searchParameterResolver, TerminologyProvider terminologyProvider) {
+    public DataProvider dataProvider(ModelResolver modelResolver, DaoRegistry daoRegistry, SearchParameterResolver searchParameterResolver, TerminologyProvider terminologyProvider, @Qualifier("retrieveQueryExecutor") ExecutorService retrieveQueryExecutor) {
         JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(daoRegistry, searchParameterResolver);
         retrieveProvider.setTerminologyProvider(terminologyProvider);
         retrieveProvider.setExpandValueSets(true);
+        retrieveProvider.setQueryExecutor(retrieveQueryExecutor);
         return new CompositeDataProvider(modelResolver, retrieveProvider);
     }
 }
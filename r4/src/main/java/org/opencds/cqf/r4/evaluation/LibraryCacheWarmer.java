@@ -0,0 +1,236 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.RelatedArtifact;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.r4.helpers.LibraryHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.cql.common.provider.LibraryResolutionProvider;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+
+/**
+ * Loads every Library with CQL content into the global library cache once
+ * the server has started, so the first evaluation of each artifact does not
+ * pay for its translation.
+ *
+ * A library is loaded after the libraries it depends on, as listed in its
+ * relatedArtifacts, and independent libraries are loaded in parallel. The
+ * warm-up runs in the background and reports its progress through
+ * {@link #getStatus()}. It only runs when cql.warm_up.enabled is set. A
+ * library that can not be loaded is counted as a failure, while a warm-up
+ * that could not run to the end is failed and not retried.
+ */
+@Component
+public class LibraryCacheWarmer implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryCacheWarmer.class);
+
+    public enum Status {
+        DISABLED, PENDING, RUNNING, COMPLETE, FAILED
+    }
+
+    private LibraryHelper libraryHelper;
+    private LibraryResolutionProvider<Library> libraryResourceProvider;
+    private DaoRegistry registry;
+
+    private AtomicBoolean started = new AtomicBoolean();
+    private volatile Status status = HapiProperties.getCqlWarmUpEnabled() ? Status.PENDING : Status.DISABLED;
+    private volatile int libraryCount;
+    private AtomicInteger warmedCount = new AtomicInteger();
+    private AtomicInteger failureCount = new AtomicInteger();
+    private volatile long startMillis;
+    private volatile long endMillis;
+
+    @Inject
+    public LibraryCacheWarmer(LibraryHelper libraryHelper,
+            LibraryResolutionProvider<Library> libraryResourceProvider, DaoRegistry registry) {
+        this.libraryHelper = libraryHelper;
+        this.libraryResourceProvider = libraryResourceProvider;
+        this.registry = registry;
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (this.status == Status.DISABLED || !this.started.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(this::warm, "library-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return whether the warm-up has completed, or is not enabled
+     */
+    public boolean isReady() {
+        return this.status == Status.COMPLETE || this.status == Status.DISABLED;
+    }
+
+    public int getLibraryCount() {
+        return this.libraryCount;
+    }
+
+    public int getWarmedCount() {
+        return this.warmedCount.get();
+    }
+
+    public int getFailureCount() {
+        return this.failureCount.get();
+    }
+
+    public long getElapsedMillis() {
+        if (this.startMillis == 0) {
+            return 0;
+        }
+
+        return (this.endMillis != 0 ? this.endMillis : System.currentTimeMillis()) - this.startMillis;
+    }
+
+    public int getCachedLibraryCount() {
+        return this.libraryHelper.getLibraryCache().size();
+    }
+
+    private void warm() {
+        this.startMillis = System.currentTimeMillis();
+        this.status = Status.RUNNING;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, HapiProperties.getCqlWarmUpThreadCount()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "library-warm-up-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Status result = Status.FAILED;
+        try {
+            Map<String, Library> libraries = getLibraries();
+            this.libraryCount = new HashSet<>(libraries.values()).size();
+            logger.info("Warming up the library cache with {} libraries", this.libraryCount);
+
+            // Translating libraries are not thread-safe, and each keeps the
+            // libraries it translated, so every worker uses its own
+            ThreadLocal<LibraryLoader> libraryLoaders = ThreadLocal
+                    .withInitial(() -> this.libraryHelper.createLibraryLoader(this.libraryResourceProvider));
+
+            Map<Library, CompletableFuture<Void>> loads = new HashMap<>();
+            for (Library library : libraries.values()) {
+                load(library, libraries, loads, new HashSet<>(), libraryLoaders, executor);
+            }
+
+            CompletableFuture.allOf(loads.values().toArray(new CompletableFuture<?>[0])).join();
+            result = Status.COMPLETE;
+        } catch (Exception e) {
+            logger.warn("Library cache warm-up failed", e);
+        } finally {
+            executor.shutdown();
+            this.endMillis = System.currentTimeMillis();
+            this.status = result;
+        }
+
+        logger.info("Warmed up {} of {} libraries in {} ms, {} failed", this.warmedCount.get(), this.libraryCount,
+                getElapsedMillis(), this.failureCount.get());
+    }
+
+    private CompletableFuture<Void> load(Library library, Map<String, Library> libraries,
+            Map<Library, CompletableFuture<Void>> loads, Set<Library> visiting,
+            ThreadLocal<LibraryLoader> libraryLoaders, ExecutorService executor) {
+        CompletableFuture<Void> load = loads.get(library);
+        if (load != null) {
+            return load;
+        }
+
+        // Libraries can not include each other, but their relatedArtifacts could say so
+        visiting.add(library);
+        List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        for (RelatedArtifact relatedArtifact : library.getRelatedArtifact()) {
+            if (relatedArtifact.getType() != RelatedArtifact.RelatedArtifactType.DEPENDSON) {
+                continue;
+            }
+
+            Library dependency = libraries.get(relatedArtifact.hasResource() ? relatedArtifact.getResource()
+                    : relatedArtifact.getUrl());
+            if (dependency != null && !visiting.contains(dependency)) {
+                dependencies.add(load(dependency, libraries, loads, visiting, libraryLoaders, executor));
+            }
+        }
+        visiting.remove(library);
+
+        load = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .handle((x, e) -> null)
+                .thenRunAsync(() -> {
+                    try {
+                        libraryLoaders.get().load(
+                                new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+                        this.warmedCount.incrementAndGet();
+                    } catch (Exception e) {
+                        this.failureCount.incrementAndGet();
+                        logger.warn("Unable to load library {} version {}", library.getName(), library.getVersion(), e);
+                    }
+                }, executor);
+        loads.put(library, load);
+
+        return load;
+    }
+
+    // The libraries with CQL content, by Library/id and by url
+    private Map<String, Library> getLibraries() {
+        List<IBaseResource> resources = this.registry.getResourceDao(Library.class)
+                .search(SearchParameterMap.newSynchronous()).getAllResources();
+
+        Map<String, Library> libraries = new HashMap<>();
+        for (IBaseResource resource : resources) {
+            Library library = (Library) resource;
+            if (!library.hasName() || !hasCql(library)) {
+                continue;
+            }
+
+            libraries.put("Library/" + library.getIdElement().getIdPart(), library);
+            if (library.hasUrl()) {
+                libraries.put(library.getUrl(), library);
+                if (library.hasVersion()) {
+                    libraries.put(library.getUrl() + "|" + library.getVersion(), library);
+                }
+            }
+        }
+
+        return libraries;
+    }
+
+    private boolean hasCql(Library library) {
+        for (Attachment attachment : library.getContent()) {
+            if ("text/cql".equals(attachment.getContentType())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
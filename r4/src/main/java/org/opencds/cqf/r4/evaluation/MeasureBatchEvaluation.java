@@ -0,0 +1,96 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResources;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+
+/**
+ * Evaluates several measures over the same patients in a single pass. Each
+ * patient is evaluated against every measure before moving on to the next one,
+ * and the measures share the retrieves made for the patient through a
+ * {@link RetrieveCache}.
+ *
+ * The seeds of the measures must have been given the retrieve cache of this
+ * evaluation before they were set up.
+ */
+public class MeasureBatchEvaluation {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureBatchEvaluation.class);
+
+    private DaoRegistry registry;
+    private RetrieveCache retrieveCache;
+    private EvaluatedResources evaluatedResources = EvaluatedResources.FULL;
+
+    public MeasureBatchEvaluation(DaoRegistry registry, RetrieveCache retrieveCache) {
+        this.registry = registry;
+        this.retrieveCache = retrieveCache;
+    }
+
+    /**
+     * @see MeasureEvaluation#setEvaluatedResources(EvaluatedResources)
+     */
+    public void setEvaluatedResources(EvaluatedResources evaluatedResources) {
+        this.evaluatedResources = evaluatedResources;
+    }
+
+    public List<MeasureReport> evaluatePopulationMeasures(List<MeasureEvaluationSeed> seeds) {
+        logger.info("Generating summary reports for {} measures", seeds.size());
+
+        return evaluate(seeds, PagedPatientIterable.allPatients(this.registry, getPageSize()),
+                MeasureReport.MeasureReportType.SUMMARY);
+    }
+
+    public List<MeasureReport> evaluateSubjectListMeasures(List<MeasureEvaluationSeed> seeds,
+            String practitionerRef) {
+        logger.info("Generating patient-list reports for {} measures", seeds.size());
+
+        Iterable<Patient> patients = practitionerRef == null
+                ? PagedPatientIterable.allPatients(this.registry, getPageSize())
+                : PagedPatientIterable.practitionerPatients(this.registry, practitionerRef, getPageSize());
+        return evaluate(seeds, patients, MeasureReport.MeasureReportType.SUBJECTLIST);
+    }
+
+    private List<MeasureReport> evaluate(List<MeasureEvaluationSeed> seeds, Iterable<Patient> patients,
+            MeasureReport.MeasureReportType type) {
+        List<MeasureEvaluation> evaluations = new ArrayList<>();
+        List<MeasureEvaluation.MeasureRun> runs = new ArrayList<>();
+        for (MeasureEvaluationSeed seed : seeds) {
+            MeasureEvaluation evaluation = new MeasureEvaluation(seed.getDataProvider(), this.registry,
+                    seed.getMeasurementPeriod());
+            evaluation.setEvaluatedResources(this.evaluatedResources);
+            evaluations.add(evaluation);
+            runs.add(evaluation.startRun(seed.getMeasure(), type, null, false));
+        }
+
+        for (Patient patient : patients) {
+            this.retrieveCache.clear();
+            for (int i = 0; i < seeds.size(); i++) {
+                evaluations.get(i).evaluatePatient(seeds.get(i).getContext(), patient, runs.get(i));
+            }
+        }
+        this.retrieveCache.clear();
+
+        logger.info("Retrieve cache hits: {}, misses: {}", this.retrieveCache.getHits(),
+                this.retrieveCache.getMisses());
+
+        List<MeasureReport> reports = new ArrayList<>();
+        for (int i = 0; i < seeds.size(); i++) {
+            reports.add(evaluations.get(i).completeRun(runs.get(i)));
+        }
+
+        return reports;
+    }
+
+    private int getPageSize() {
+        return Math.max(1, HapiProperties.getMeasureEvaluationChunkSize());
+    }
+}
@@ -1,13 +1,15 @@
 package org.opencds.cqf.r4.evaluation;
 
-import java.lang.reflect.Field;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -23,6 +25,8 @@ import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResources;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
 import org.opencds.cqf.cql.engine.data.DataProvider;
@@ -35,22 +39,52 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.param.ReferenceParam;
 
 public class MeasureEvaluation {
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluation.class);
 
+    // Populations reported for each group, in report order
+    private static final List<MeasurePopulationType> REPORTED_POPULATIONS = Arrays.asList(
+            MeasurePopulationType.INITIALPOPULATION, MeasurePopulationType.NUMERATOR,
+            MeasurePopulationType.NUMERATOREXCLUSION, MeasurePopulationType.DENOMINATOR,
+            MeasurePopulationType.DENOMINATOREXCLUSION, MeasurePopulationType.DENOMINATOREXCEPTION,
+            MeasurePopulationType.MEASUREPOPULATION, MeasurePopulationType.MEASUREPOPULATIONEXCLUSION);
+
     private DataProvider provider;
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private int threadCount;
+    private int chunkSize;
+    private EvaluatedResources evaluatedResources = EvaluatedResources.FULL;
 
     public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod) {
+        this(provider, registry, measurementPeriod, null);
+    }
+
+    /**
+     * @param contextFactory creates additional execution contexts for the measure
+     *                       being evaluated. Population and patient-list reports
+     *                       are evaluated in parallel when a factory is supplied
+     *                       and more than one thread is configured.
+     */
+    public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod,
+            Supplier<Context> contextFactory) {
         this.provider = provider;
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.threadCount = HapiProperties.getMeasureEvaluationThreadCount();
+        this.chunkSize = Math.max(1, HapiProperties.getMeasureEvaluationChunkSize());
+    }
+
+    /**
+     * Sets how the resources evaluated for each population are referenced from
+     * the report. Defaults to {@link EvaluatedResources#FULL}.
+     */
+    public void setEvaluatedResources(EvaluatedResources evaluatedResources) {
+        this.evaluatedResources = evaluatedResources;
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -76,29 +110,17 @@ public class MeasureEvaluation {
     public MeasureReport evaluateSubjectListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.SUBJECTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
-        SearchParameterMap map = SearchParameterMap.newSynchronous();
-        map.add("general-practitioner", new ReferenceParam(
-                practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
-
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getAllResources();
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    private Iterable<Patient> getPractitionerPatients(String practitionerRef) {
+        return PagedPatientIterable.practitionerPatients(registry, practitionerRef, this.chunkSize);
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
-        IBundleProvider patientProvider = registry.getResourceDao("Patient").search(SearchParameterMap.newSynchronous());
-        List<IBaseResource> patientList = patientProvider.getAllResources();
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+    private Iterable<Patient> getAllPatients() {
+        return PagedPatientIterable.allPatients(registry, this.chunkSize);
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -108,30 +130,13 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
-    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
+    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, String measureUrl) {
         if (pop == null || !pop.hasCriteria()) {
             return null;
         }
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria().getExpression();
         ExpressionDef ed = context.resolveExpressionRef(observationName);
         if (!(ed instanceof FunctionDef)) {
@@ -161,7 +166,7 @@ public class MeasureEvaluation {
         Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
         Extension extExtMeasure = new Extension()
                 .setUrl("measure")
-                .setValue(new CanonicalType(report.getMeasure()));
+                .setValue(new CanonicalType(measureUrl));
         obsExtension.addExtension(extExtMeasure);
         Extension extExtPop = new Extension()
                 .setUrl("populationId")
@@ -180,8 +185,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         Object result = context.resolveExpressionRef(pop.getCriteria().getExpression()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
@@ -199,14 +202,17 @@ public class MeasureEvaluation {
     }
 
     private boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population,
-            HashMap<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients) {
+            Measure.MeasureGroupPopulationComponent criteria, PopulationAccumulator population,
+            Measure.MeasureGroupPopulationComponent exclusionCriteria, PopulationAccumulator exclusionPopulation,
+            List<Resource> populationResources) {
         boolean inPopulation = false;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                population.add(resource);
+                if (populationResources != null) {
+                    populationResources.add(resource);
+                }
             }
         }
 
@@ -215,17 +221,17 @@ public class MeasureEvaluation {
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
+                    exclusionPopulation.add(resource);
                     population.remove(resource.getIdElement().getIdPart());
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation && population != null) {
+            population.addPatient(patient);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusionPopulation != null) {
+            exclusionPopulation.addPatient(patient);
         }
 
         return inPopulation;
@@ -233,33 +239,85 @@ public class MeasureEvaluation {
 
     private void addPopulationCriteriaReport(MeasureReport report,
             MeasureReport.MeasureReportGroupComponent reportGroup,
-            Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount,
-            Iterable<Patient> patientPopulation) {
+            Measure.MeasureGroupPopulationComponent populationCriteria, PopulationAccumulator population) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setCode(populationCriteria.getCode());
+            Map<String, String> patientPopulation = population != null ? population.getPatients() : null;
             if (report.getType() == MeasureReport.MeasureReportType.SUBJECTLIST && patientPopulation != null) {
                 ListResource SUBJECTLIST = new ListResource();
                 SUBJECTLIST.setId(UUID.randomUUID().toString());
                 populationReport.setSubjectResults(new Reference().setReference("#" + SUBJECTLIST.getId()));
-                for (Patient patient : patientPopulation) {
+                for (Map.Entry<String, String> patient : patientPopulation.entrySet()) {
                     ListResource.ListEntryComponent entry = new ListResource.ListEntryComponent()
                             .setItem(new Reference()
-                                    .setReference(patient.getIdElement().getIdPart().startsWith("Patient/")
-                                            ? patient.getIdElement().getIdPart()
-                                            : String.format("Patient/%s", patient.getIdElement().getIdPart()))
-                                    .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+                                    .setReference(patient.getKey().startsWith("Patient/")
+                                            ? patient.getKey()
+                                            : String.format("Patient/%s", patient.getKey()))
+                                    .setDisplay(patient.getValue()));
                     SUBJECTLIST.addEntry(entry);
                 }
                 report.addContained(SUBJECTLIST);
             }
-            populationReport.setCount(populationCount);
+            populationReport.setCount(population != null ? population.size() : 0);
             reportGroup.addPopulation(populationReport);
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
+        Patient subject = null;
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            subject = patients.iterator().next();
+        }
+
+        MeasureRun run = startRun(measure, type, subject, isSingle);
+        if (type != MeasureReport.MeasureReportType.INDIVIDUAL && this.contextFactory != null
+                && this.threadCount > 1) {
+            evaluateParallel(patients, run);
+        } else {
+            Iterator<Patient> patientIterator = patients.iterator();
+            while (patientIterator.hasNext()) {
+                List<Patient> chunk = nextChunk(patientIterator);
+                setCohort(context, chunk);
+                for (Patient patient : chunk) {
+                    evaluatePatient(context, patient, run);
+                }
+            }
+            setCohort(context, Collections.emptyList());
+        }
+
+        return completeRun(run);
+    }
+
+    private List<Patient> nextChunk(Iterator<Patient> patientIterator) {
+        List<Patient> chunk = new ArrayList<>(this.chunkSize);
+        while (patientIterator.hasNext() && chunk.size() < this.chunkSize) {
+            chunk.add(patientIterator.next());
+        }
+
+        return chunk;
+    }
+
+    // Lets the data providers of the context retrieve the data of the whole chunk at once
+    private void setCohort(Context context, List<Patient> chunk) {
+        if (context instanceof PatientScopedContext) {
+            List<String> patientIds = new ArrayList<>(chunk.size());
+            for (Patient patient : chunk) {
+                patientIds.add(patient.getIdElement().getIdPart());
+            }
+            ((PatientScopedContext) context).getCohort().setPatientIds(patientIds);
+        }
+    }
+
+    /**
+     * Prepares the evaluation of a measure. Patients are then added with
+     * {@link #evaluatePatient(Context, Patient, MeasureRun)} and the report is
+     * built by {@link #completeRun(MeasureRun)}.
+     *
+     * @param subject the patient of an individual report, may be null
+     */
+    MeasureRun startRun(Measure measure, MeasureReport.MeasureReportType type, Patient subject, boolean isSingle) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
@@ -268,394 +326,326 @@ public class MeasureEvaluation {
         } catch (Exception e) {
             logger.error("Measure must have a canonical url.");
         }
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            IdType patientId = patients.get(0).getIdElement();
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && subject != null) {
+            IdType patientId = subject.getIdElement();
             reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
         MeasureReport report = reportBuilder.build();
 
-        HashMap<String, Resource> resources = new HashMap<>();
-        HashMap<Pair<String, String>, HashSet<String>> codeToResourceMap = new HashMap<>();
-
         MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
         if (measureScoring == null) {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
+        // TODO: Isn't quite right, there may be multiple initial populations for a
+        // ratio measure, and multiple measure observations...
+        List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria = new ArrayList<>();
         for (Measure.MeasureGroupComponent group : measure.getGroup()) {
-            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-            reportGroup.setId(group.getId());
-            report.getGroup().add(reportGroup);
-
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-             sde = measure.getSupplementalData();
+            Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = new EnumMap<>(
+                    MeasurePopulationType.class);
             for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
                 MeasurePopulationType populationType = MeasurePopulationType
                         .fromCode(pop.getCode().getCodingFirstRep().getCode());
                 if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                initialPopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExceptionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
+                    criteria.put(populationType, pop);
+                }
+            }
+            groupCriteria.add(criteria);
+        }
+
+        return new MeasureRun(measure, report, measureScoring, groupCriteria,
+                type == MeasureReport.MeasureReportType.SUBJECTLIST, isSingle);
+    }
+
+    /**
+     * Builds the report of a measure once all its patients have been evaluated.
+     */
+    MeasureReport completeRun(MeasureRun run) {
+        Measure measure = run.measure;
+        MeasureReport report = run.report;
+        MeasureScoring measureScoring = run.scoring;
+        List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria = run.groupCriteria;
+        List<Measure.MeasureSupplementalDataComponent> sde = measure.getSupplementalData();
+        MeasureResultAccumulator results = run.results;
+
+        for (int i = 0; i < groupCriteria.size(); i++) {
+            Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = groupCriteria.get(i);
+            Map<MeasurePopulationType, PopulationAccumulator> populations = results.getGroup(i);
+
+            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
+            reportGroup.setId(measure.getGroup().get(i).getId());
+            report.getGroup().add(reportGroup);
+
+            if (measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO) {
+                // Calculate actual measure score, Count(numerator) / Count(denominator)
+                PopulationAccumulator numerator = populations.get(MeasurePopulationType.NUMERATOR);
+                PopulationAccumulator denominator = populations.get(MeasurePopulationType.DENOMINATOR);
+                if (denominator != null && numerator != null && denominator.size() > 0) {
+                    reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
+                }
+            }
+
+            // Add population reports for each group
+            for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                addPopulationCriteriaReport(report, reportGroup, criteria.get(populationType),
+                        populations.get(populationType));
+            }
+            // TODO: Measure Observations...
+        }
+
+        // Evaluated resources indexed by "Type/id", in the order they were first referenced
+        LinkedHashMap<String, Reference> evaluatedResourceIndex = new LinkedHashMap<>();
+        for (Resource observation : results.getObservations()) {
+            report.addContained(observation);
+            evaluatedResourceIndex.put("#" + observation.getId(), new Reference("#" + observation.getId()));
+        }
+
+        if (this.evaluatedResources != EvaluatedResources.NONE) {
+            for (Map.Entry<Pair<String, String>, HashSet<String>> entry : results.getCodeToResourceMap().entrySet()) {
+                String populationCode = entry.getKey().getLeft();
+                for (String element : entry.getValue()) {
+                    Reference reference = evaluatedResourceIndex.computeIfAbsent(element, Reference::new);
+                    if (this.evaluatedResources == EvaluatedResources.FULL) {
+                        reference.addExtension("http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-populationReference",
+                                new StringType(populationCode));
                     }
                 }
             }
+        }
+        report.setEvaluatedResource(new ArrayList<>(evaluatedResourceIndex.values()));
+
+        SupplementalDataAccumulator sdeAccumulators = results.getSdeAccumulators();
+        if (!sdeAccumulators.isEmpty()) {
+            report = processAccumulators(report, sdeAccumulators, sde, run.isSingle);
+        }
+
+        return report;
+    }
+
+    /**
+     * Evaluates one patient against a measure started with
+     * {@link #startRun(Measure, MeasureReport.MeasureReportType, Patient, boolean)}.
+     */
+    void evaluatePatient(Context context, Patient patient, MeasureRun run) {
+        evaluatePatient(context, patient, run, run.results);
+    }
+
+    private void evaluatePatient(Context context, Patient patient, MeasureRun run, MeasureResultAccumulator results) {
+        MeasureScoring measureScoring = run.scoring;
+        List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria = run.groupCriteria;
+        List<Measure.MeasureSupplementalDataComponent> sde = run.measure.getSupplementalData();
+        String measureUrl = run.report.getMeasure();
+        HashMap<Pair<String, String>, HashSet<String>> codeToResourceMap = results.getCodeToResourceMap();
+
+        for (int i = 0; i < groupCriteria.size(); i++) {
+            Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria = groupCriteria.get(i);
+            Map<MeasurePopulationType, PopulationAccumulator> populations = results.getGroup(i);
 
             switch (measureScoring) {
                 case PROPORTION:
                 case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
+                    // Are they in the initial population?
+                    boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                            criteria.get(MeasurePopulationType.INITIALPOPULATION),
+                            populations.get(MeasurePopulationType.INITIALPOPULATION), null, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, codeToResourceMap);
+
+                    if (inInitialPopulation) {
+                        // Are they in the denominator?
+                        PopulationAccumulator denominator = populations.get(MeasurePopulationType.DENOMINATOR);
+                        boolean inDenominator = evaluatePopulationCriteria(context, patient,
+                                criteria.get(MeasurePopulationType.DENOMINATOR), denominator,
+                                criteria.get(MeasurePopulationType.DENOMINATOREXCLUSION),
+                                populations.get(MeasurePopulationType.DENOMINATOREXCLUSION), null);
+                        populateResourceMap(context, MeasurePopulationType.DENOMINATOR, codeToResourceMap);
+
+                        if (inDenominator) {
+                            // Are they in the numerator?
+                            boolean inNumerator = evaluatePopulationCriteria(context, patient,
+                                    criteria.get(MeasurePopulationType.NUMERATOR),
+                                    populations.get(MeasurePopulationType.NUMERATOR),
+                                    criteria.get(MeasurePopulationType.NUMERATOREXCLUSION),
+                                    populations.get(MeasurePopulationType.NUMERATOREXCLUSION), null);
+                            populateResourceMap(context, MeasurePopulationType.NUMERATOR, codeToResourceMap);
+
+                            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = criteria
+                                    .get(MeasurePopulationType.DENOMINATOREXCEPTION);
+                            if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
+                                // Are they in the denominator exception?
+                                PopulationAccumulator denominatorException = populations
+                                        .get(MeasurePopulationType.DENOMINATOREXCEPTION);
+                                boolean inException = false;
+                                for (Resource resource : evaluateCriteria(context, patient,
+                                        denominatorExceptionCriteria)) {
+                                    inException = true;
+                                    denominatorException.add(resource);
+                                    denominator.remove(resource.getIdElement().getIdPart());
+                                    populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
+                                            codeToResourceMap);
+                                }
+                                if (inException) {
+                                    denominatorException.addPatient(patient);
+                                    denominator.removePatient(patient.getIdElement().getIdPart());
                                 }
                             }
                         }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
                     }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
-                    }
-
                     break;
                 }
                 case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    report.getEvaluatedResource().add(new Reference("#" + observation.getId()));
+                    // Are they in the initial population?
+                    boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                            criteria.get(MeasurePopulationType.INITIALPOPULATION),
+                            populations.get(MeasurePopulationType.INITIALPOPULATION), null, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, codeToResourceMap);
+
+                    if (inInitialPopulation) {
+                        // Are they in the measure population?
+                        List<Resource> measurePopulationResources = new ArrayList<>();
+                        boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
+                                criteria.get(MeasurePopulationType.MEASUREPOPULATION),
+                                populations.get(MeasurePopulationType.MEASUREPOPULATION),
+                                criteria.get(MeasurePopulationType.MEASUREPOPULATIONEXCLUSION),
+                                populations.get(MeasurePopulationType.MEASUREPOPULATIONEXCLUSION),
+                                measurePopulationResources);
+
+                        if (inMeasurePopulation) {
+                            for (Resource resource : measurePopulationResources) {
+                                Resource observation = evaluateObservationCriteria(context, patient, resource,
+                                        criteria.get(MeasurePopulationType.MEASUREOBSERVATION), measureUrl);
+                                if (observation != null) {
+                                    results.addObservation(observation);
                                 }
                             }
                         }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
                     }
-
                     break;
                 }
                 case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
+                    evaluatePopulationCriteria(context, patient,
+                            criteria.get(MeasurePopulationType.INITIALPOPULATION),
+                            populations.get(MeasurePopulationType.INITIALPOPULATION), null, null, null);
+                    populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, codeToResourceMap);
                     break;
                 }
             }
+        }
 
-            // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
+        if (!groupCriteria.isEmpty()) {
+            populateSDEAccumulators(context, patient, results.getSdeAccumulators(), sde);
+            // Resources touched by the supplemental data do not belong to any population
+            context.clearEvaluatedResources();
         }
+    }
 
-        List<Reference> evaluatedResourceIds = new ArrayList<>();
-        Map<String, Reference> referenceMap = new HashMap<String, Reference>();
-        for (Pair<String, String> key : codeToResourceMap.keySet()) {
-            org.hl7.fhir.r4.model.ListResource list = new org.hl7.fhir.r4.model.ListResource();
-            for (String element : codeToResourceMap.get(key)) {
-                if (referenceMap.containsKey(element)) {
-                    referenceMap.get(element).addExtension("http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-populationReference",
-                        new StringType(key.getLeft()));
-                    if (!evaluatedResourceIds.contains(referenceMap.get(element))) {
-                        evaluatedResourceIds.add(referenceMap.get(element));
-                    }
-                } else {
-                    org.hl7.fhir.r4.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.r4.model.ListResource.ListEntryComponent();
-                    Reference reference = new Reference(element);
-                    comp.setItem(reference);
-                    list.addEntry(comp);
-                    // Do not want to add extension to ListEntryReference
-                    reference.addExtension("http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/extension-populationReference",
-                            new StringType(key.getLeft()));
-                    if (!evaluatedResourceIds.contains(reference)) {
-                        evaluatedResourceIds.add(reference);
+    private void evaluateParallel(Iterable<Patient> patients, MeasureRun run) {
+        logger.info("Evaluating patients on {} threads in chunks of {}", this.threadCount, this.chunkSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+        try {
+            // Chunks are merged in submission order so the populations match a serial run.
+            // At most two chunks per thread are in flight at any time.
+            Deque<Future<MeasureResultAccumulator>> pending = new ArrayDeque<>();
+            Iterator<Patient> patientIterator = patients.iterator();
+            while (patientIterator.hasNext()) {
+                List<Patient> chunk = nextChunk(patientIterator);
+
+                pending.add(executor.submit(() -> {
+                    Context chunkContext = this.contextFactory.get();
+                    setCohort(chunkContext, chunk);
+                    MeasureResultAccumulator chunkResults = run.newAccumulator();
+                    for (Patient patient : chunk) {
+                        evaluatePatient(chunkContext, patient, run, chunkResults);
                     }
-                    referenceMap.put(element, reference);
+                    return chunkResults;
+                }));
+
+                if (pending.size() >= this.threadCount * 2) {
+                    run.results.merge(getChunkResults(pending.poll()));
                 }
             }
 
-            if (!list.isEmpty()) {
-                list.setId("List/" + UUID.randomUUID().toString());
-                list.setTitle(key.getRight());
-                resources.put(list.getId(), list);
+            while (!pending.isEmpty()) {
+                run.results.merge(getChunkResults(pending.poll()));
             }
+        } finally {
+            executor.shutdownNow();
         }
-        report.setEvaluatedResource(evaluatedResourceIds);
+    }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+    private MeasureResultAccumulator getChunkResults(Future<MeasureResultAccumulator> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Measure evaluation was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error evaluating measure", e.getCause());
         }
-
-        return report;
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
+    private void populateSDEAccumulators(Context context, Patient patient, SupplementalDataAccumulator sdeAccumulator,
                                          List<Measure.MeasureSupplementalDataComponent> sde){
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria().getExpression()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getCode().getText();
-                    if((null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1) && (null != sde.get(i).getCriteria() && null != sde.get(i).getCriteria().getExpression())){
-                        sdeAccumulatorKey = sde.get(i).getCriteria().getExpression().toLowerCase(Locale.ROOT).replace(" ", "-");
-                    }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
-
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                if (((ArrayList<?>) sdeListItem).get(0).getClass().getSimpleName().equals("Coding")) {
-                                    code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                                } else if (((ArrayList<?>) sdeListItem).get(0).getClass().getSimpleName().equals("Code")) {
-                                    code = ((Code) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                                } else {
-                                    continue;
-                                }
-                            }else{
-                                continue;
-                            }
-                            break;
-                    }
-                    if(null == code){
-                        continue;
-                    }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
-                        }
-                    }
+        for (Measure.MeasureSupplementalDataComponent sdeItem : sde) {
+            Object sdeListItem = context.resolveExpressionRef(sdeItem.getCriteria().getExpression()).evaluate(context);
+            if (null == sdeListItem) {
+                continue;
+            }
+
+            String sdeAccumulatorKey = sdeItem.getCode().getText();
+            if((null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1) && (null != sdeItem.getCriteria() && null != sdeItem.getCriteria().getExpression())){
+                sdeAccumulatorKey = sdeItem.getCriteria().getExpression().toLowerCase(Locale.ROOT).replace(" ", "-");
+            }
+
+            if (sdeListItem instanceof List) {
+                if (((List<?>) sdeListItem).isEmpty()) {
+                    continue;
                 }
+                sdeListItem = ((List<?>) sdeListItem).get(0);
+                if (!(sdeListItem instanceof Coding) && !(sdeListItem instanceof Code)) {
+                    continue;
+                }
+            }
+
+            Coding coding = null;
+            if (sdeListItem instanceof Coding) {
+                coding = (Coding) sdeListItem;
+            } else if (sdeListItem instanceof Code) {
+                Code code = (Code) sdeListItem;
+                coding = new Coding(code.getSystem(), code.getCode(), code.getDisplay());
             }
+
+            // values that are not codes are counted together
+            String code = coding != null ? coding.getCode() : "";
+            if(null == code){
+                continue;
+            }
+
+            sdeAccumulator.add(sdeAccumulatorKey, code, coding);
         }
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulators,
+                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle){
         List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
+        sdeAccumulators.getCounts().forEach((sdeKey, sdeAccumulator) -> {
             sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
                 Observation obs = new Observation();
                 obs.setStatus(Observation.ObservationStatus.FINAL);
                 obs.setId(UUID.randomUUID().toString());
                 Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-') >= 0 ? sdeKey.lastIndexOf('-') : 0);
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
+                Coding seenCoding = sdeAccumulators.getCoding(sdeKey, sdeAccumulatorKey);
+                if(!sdeKey.equalsIgnoreCase("sde-sex") && seenCoding != null){
+                    valueCoding.setSystem(seenCoding.getSystem());
+                    valueCoding.setDisplay(seenCoding.getDisplay());
                 }
+                valueCoding.setCode(sdeAccumulatorKey);
                 CodeableConcept obsCodeableConcept = new CodeableConcept();
                 Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
                 Extension extExtMeasure = new Extension()
@@ -667,9 +657,8 @@ public class MeasureEvaluation {
                         .setValue(new StringType(sdeKey));
                 obsExtension.addExtension(extExtPop);
                 obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
+                obs.setValue(new IntegerType(sdeAccumulatorValue.intValue()));
                 if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
                     obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
                     obs.setCode(obsCodeableConcept);
                 }else{
@@ -686,12 +675,17 @@ public class MeasureEvaluation {
         return report;
     }
 
-    private void populateResourceMap(Context context, MeasurePopulationType type, HashMap<String, Resource> resources,
+    private void populateResourceMap(Context context, MeasurePopulationType type,
             HashMap<Pair<String, String>, HashSet<String>> codeToResourceMap) {
         if (context.getEvaluatedResources().isEmpty()) {
             return;
         }
 
+        if (this.evaluatedResources == EvaluatedResources.NONE) {
+            context.clearEvaluatedResources();
+            return;
+        }
+
         if (!codeToResourceMap.containsKey(Pair.of(type.toCode(), type.getDisplay()))) {
             codeToResourceMap.put(Pair.of(type.toCode(), type.getDisplay()), new HashSet<>());
         }
@@ -703,16 +697,40 @@ public class MeasureEvaluation {
                 Resource r = (Resource) o;
                 String id = (r.getIdElement().getResourceType() != null ? (r.getIdElement().getResourceType() + "/")
                         : "") + r.getIdElement().getIdPart();
-                if (!codeHashSet.contains(id)) {
-                    codeHashSet.add(id);
-                }
-
-                if (!resources.containsKey(id)) {
-                    resources.put(id, r);
-                }
+                codeHashSet.add(id);
             }
         }
 
         context.clearEvaluatedResources();
     }
-}
\ No newline at end of file
+
+    /**
+     * The state of the evaluation of one measure over a set of patients.
+     */
+    static class MeasureRun {
+        private Measure measure;
+        private MeasureReport report;
+        private MeasureScoring scoring;
+        private List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria;
+        private boolean trackPatients;
+        private boolean isSingle;
+        private IdDictionary dictionary = new IdDictionary();
+        private MeasureResultAccumulator results;
+
+        private MeasureRun(Measure measure, MeasureReport report, MeasureScoring scoring,
+                List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria,
+                boolean trackPatients, boolean isSingle) {
+            this.measure = measure;
+            this.report = report;
+            this.scoring = scoring;
+            this.groupCriteria = groupCriteria;
+            this.trackPatients = trackPatients;
+            this.isSingle = isSingle;
+            this.results = this.newAccumulator();
+        }
+
+        private MeasureResultAccumulator newAccumulator() {
+            return new MeasureResultAccumulator(this.groupCriteria, this.dictionary, this.trackPatients);
+        }
+    }
+}
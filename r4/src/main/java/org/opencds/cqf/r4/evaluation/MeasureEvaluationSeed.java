@@ -2,14 +2,22 @@ package org.opencds.cqf.r4.evaluation;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.TerminologyWarmer;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.LoggingHelper;
 import org.opencds.cqf.common.helpers.UsingHelper;
+import org.opencds.cqf.common.retrieve.PatientCohort;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
@@ -22,13 +30,19 @@ import ca.uhn.fhir.cql.r4.helper.LibraryHelper;
 
 public class MeasureEvaluationSeed {
     private Measure measure;
-    private Context context;
+    private PatientScopedContext context;
     private Interval measurementPeriod;
     private LibraryLoader libraryLoader;
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
     private LibraryHelper libraryHelper;
+    private Library library;
+    private List<Triple<String, String, String>> usingDefs;
+    private TerminologyProvider terminologyProvider;
+    private String productLine;
+    private Map<Pair<VersionedIdentifier, String>, PatientScopedContext.CachedExpression> runExpressionCache;
+    private RetrieveCache retrieveCache;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, LibraryHelper libraryHelper) {
@@ -54,6 +68,14 @@ public class MeasureEvaluationSeed {
         return this.dataProvider;
     }
 
+    /**
+     * Shares the given retrieve cache with the data providers created by
+     * {@link #setup}. Must be called before {@link #setup}.
+     */
+    public void setRetrieveCache(RetrieveCache retrieveCache) {
+        this.retrieveCache = retrieveCache;
+    }
+
     public void setup(Measure measure, String periodStart, String periodEnd, String productLine, String source,
             String user, String pass) {
         this.measure = measure;
@@ -61,15 +83,9 @@ public class MeasureEvaluationSeed {
         this.libraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
 
         // resolve primary library
-        Library library = this.libraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        this.library = this.libraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
 
-        // resolve execution context
-        context = new Context(library);
-        context.setExpressionCaching(true);
-        context.setDebugMap(LoggingHelper.getDebugMap());
-        context.registerLibraryLoader(libraryLoader);
-
-        List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        this.usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
 
         if (usingDefs.size() > 1) {
             throw new IllegalArgumentException(
@@ -79,32 +95,81 @@ public class MeasureEvaluationSeed {
         // If there are no Usings, there is probably not any place the Terminology
         // actually used so I think the assumption that at least one provider exists is
         // ok.
-        TerminologyProvider terminologyProvider = null;
+        this.terminologyProvider = null;
         if (usingDefs.size() > 0) {
             // Creates a terminology provider based on the first using statement. This
             // assumes the terminology
             // server matches the FHIR version of the CQL.
-            terminologyProvider = this.providerFactory.createTerminologyProvider(usingDefs.get(0).getLeft(),
+            this.terminologyProvider = this.providerFactory.createTerminologyProvider(usingDefs.get(0).getLeft(),
                     usingDefs.get(0).getMiddle(), source, user, pass);
-            context.registerTerminologyProvider(terminologyProvider);
         }
 
-        for (Triple<String, String, String> def : usingDefs) {
-            this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
-                    terminologyProvider);
-            context.registerDataProvider(def.getRight(), dataProvider);
+        if (this.terminologyProvider != null && HapiProperties.getMeasureEvaluationWarmTerminology()) {
+            new TerminologyWarmer(this.terminologyProvider, HapiProperties.getTerminologyWarmUpThreadCount())
+                    .warm(this.library, this.libraryLoader);
         }
 
         // resolve the measurement period
         measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
                 DateHelper.resolveRequestDate(periodEnd, false), true);
 
+        this.productLine = productLine;
+
+        // patient independent results are shared by every context of this evaluation
+        this.runExpressionCache = new ConcurrentHashMap<>();
+
+        // resolve execution context
+        this.context = this.newContext();
+        this.dataProvider = this.registerDataProviders(this.context);
+    }
+
+    /**
+     * Creates an additional execution context for the measure passed to
+     * {@link #setup}. The context shares the compiled libraries, terminology and
+     * parameters of the primary context, as well as the cache of patient
+     * independent results, but has its own data providers and patient expression
+     * cache, so it can be used on a different thread.
+     */
+    public Context createContext() {
+        if (this.library == null) {
+            throw new IllegalStateException("setup must be called before additional contexts can be created");
+        }
+
+        PatientScopedContext context = this.newContext();
+        this.registerDataProviders(context);
+        return context;
+    }
+
+    private PatientScopedContext newContext() {
+        PatientScopedContext context = new PatientScopedContext(this.library, this.runExpressionCache);
+        context.setExpressionCaching(true);
+        context.setDebugMap(LoggingHelper.getDebugMap());
+        context.registerLibraryLoader(this.libraryLoader);
+
+        if (this.terminologyProvider != null) {
+            context.registerTerminologyProvider(this.terminologyProvider);
+        }
+
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
                         DateTime.fromJavaDate((Date) measurementPeriod.getEnd()), true));
 
-        if (productLine != null) {
-            context.setParameter(null, "Product Line", productLine);
+        if (this.productLine != null) {
+            context.setParameter(null, "Product Line", this.productLine);
         }
+
+        return context;
+    }
+
+    private DataProvider registerDataProviders(PatientScopedContext context) {
+        PatientCohort cohort = HapiProperties.getMeasureEvaluationCohortPrefetch() ? context.getCohort() : null;
+        DataProvider dataProvider = null;
+        for (Triple<String, String, String> def : this.usingDefs) {
+            dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
+                    this.terminologyProvider, this.retrieveCache, cohort);
+            context.registerDataProvider(def.getRight(), dataProvider);
+        }
+
+        return dataProvider;
     }
 }
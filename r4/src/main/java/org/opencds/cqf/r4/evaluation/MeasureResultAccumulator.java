@@ -0,0 +1,86 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * Holds everything a {@link MeasureEvaluation} collects while walking a set of
+ * patients: the population members of every group, the evaluated resources per
+ * population, the supplemental data counts and the generated measure
+ * observations.
+ *
+ * Each worker of a parallel evaluation fills its own accumulator, the results
+ * are combined with {@link #merge} in patient order. All the accumulators of an
+ * evaluation must share the same {@link IdDictionary}.
+ */
+public class MeasureResultAccumulator {
+
+    private List<Map<MeasurePopulationType, PopulationAccumulator>> groups = new ArrayList<>();
+    private HashMap<Pair<String, String>, HashSet<String>> codeToResourceMap = new HashMap<>();
+    private SupplementalDataAccumulator sdeAccumulators = new SupplementalDataAccumulator();
+    private List<Resource> observations = new ArrayList<>();
+
+    public MeasureResultAccumulator(
+            List<Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent>> groupCriteria,
+            IdDictionary dictionary, boolean trackPatients) {
+        for (Map<MeasurePopulationType, Measure.MeasureGroupPopulationComponent> criteria : groupCriteria) {
+            Map<MeasurePopulationType, PopulationAccumulator> populations = new EnumMap<>(
+                    MeasurePopulationType.class);
+            for (MeasurePopulationType type : criteria.keySet()) {
+                if (type != MeasurePopulationType.MEASUREOBSERVATION) {
+                    populations.put(type, new PopulationAccumulator(dictionary, trackPatients));
+                }
+            }
+            this.groups.add(populations);
+        }
+    }
+
+    public Map<MeasurePopulationType, PopulationAccumulator> getGroup(int index) {
+        return this.groups.get(index);
+    }
+
+    public HashMap<Pair<String, String>, HashSet<String>> getCodeToResourceMap() {
+        return this.codeToResourceMap;
+    }
+
+    public SupplementalDataAccumulator getSdeAccumulators() {
+        return this.sdeAccumulators;
+    }
+
+    public List<Resource> getObservations() {
+        return this.observations;
+    }
+
+    public void addObservation(Resource observation) {
+        this.observations.add(observation);
+    }
+
+    /**
+     * Appends the results of an accumulator that evaluated the patients following
+     * the ones evaluated by this accumulator.
+     */
+    public void merge(MeasureResultAccumulator next) {
+        for (int i = 0; i < this.groups.size(); i++) {
+            Map<MeasurePopulationType, PopulationAccumulator> nextGroup = next.groups.get(i);
+            for (Map.Entry<MeasurePopulationType, PopulationAccumulator> entry : this.groups.get(i).entrySet()) {
+                entry.getValue().merge(nextGroup.get(entry.getKey()));
+            }
+        }
+
+        for (Map.Entry<Pair<String, String>, HashSet<String>> entry : next.codeToResourceMap.entrySet()) {
+            this.codeToResourceMap.computeIfAbsent(entry.getKey(), x -> new HashSet<>()).addAll(entry.getValue());
+        }
+
+        this.sdeAccumulators.merge(next.sdeAccumulators);
+        this.observations.addAll(next.observations);
+    }
+}
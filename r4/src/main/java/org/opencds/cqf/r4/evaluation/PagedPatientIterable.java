@@ -0,0 +1,120 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+/**
+ * Streams the Patients matching a search one page at a time, so only a single
+ * page of Patients is held in memory while a measure is evaluated.
+ *
+ * The search is run lazily when iteration starts and each iterator runs its own
+ * search.
+ */
+public class PagedPatientIterable implements Iterable<Patient> {
+
+    private DaoRegistry registry;
+    private SearchParameterMap map;
+    private int pageSize;
+
+    /**
+     * @param map a non-synchronous search so the results can be paged from the
+     *            search cache rather than loaded all at once
+     */
+    public PagedPatientIterable(DaoRegistry registry, SearchParameterMap map, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+
+        this.registry = registry;
+        this.map = map;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return all the Patients on the server
+     */
+    public static PagedPatientIterable allPatients(DaoRegistry registry, int pageSize) {
+        return new PagedPatientIterable(registry, new SearchParameterMap(), pageSize);
+    }
+
+    /**
+     * @return the Patients whose general practitioner is the given Practitioner
+     */
+    public static PagedPatientIterable practitionerPatients(DaoRegistry registry, String practitionerRef,
+            int pageSize) {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("general-practitioner", new ReferenceParam(
+                practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
+
+        return new PagedPatientIterable(registry, map, pageSize);
+    }
+
+    @Override
+    public Iterator<Patient> iterator() {
+        return new PagedPatientIterator();
+    }
+
+    private class PagedPatientIterator implements Iterator<Patient> {
+
+        private IBundleProvider bundleProvider;
+        private List<IBaseResource> page = Collections.emptyList();
+        private Integer size;
+        private int nextPageStart = 0;
+        private int pageIndex = 0;
+        private boolean exhausted = false;
+
+        @Override
+        public boolean hasNext() {
+            if (pageIndex < page.size()) {
+                return true;
+            }
+
+            if (exhausted) {
+                return false;
+            }
+
+            fetchNextPage();
+            return pageIndex < page.size();
+        }
+
+        @Override
+        public Patient next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return (Patient) page.get(pageIndex++);
+        }
+
+        private void fetchNextPage() {
+            if (bundleProvider == null) {
+                bundleProvider = registry.getResourceDao("Patient").search(map);
+            }
+
+            // A page may come back short if resources were removed since the search
+            // was run, so keep paging by range until the known end of the results.
+            // The total is not always known up front, in which case the first empty
+            // page ends the iteration.
+            do {
+                page = bundleProvider.getResources(nextPageStart, nextPageStart + pageSize);
+                nextPageStart += pageSize;
+                size = bundleProvider.size();
+            } while (page.isEmpty() && size != null && nextPageStart < size);
+
+            pageIndex = 0;
+            if (page.isEmpty() || (size != null && nextPageStart >= size)) {
+                exhausted = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.retrieve.PatientCohort;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+/**
+ * A {@link Context} whose expression cache is scoped to the evaluation of a
+ * measure.
+ *
+ * Definitions evaluated in the Unfiltered context do not depend on the patient
+ * and are cached for the whole run in a cache that may be shared by all the
+ * contexts of the run. Patient context definitions are cached until the Patient
+ * context value changes, so a definition such as "Initial Population" is
+ * evaluated once per patient no matter how many population criteria reference
+ * it.
+ *
+ * The resources a definition touched are recorded with its result and added to
+ * the evaluated resources again on every cache hit, so the evaluated resources of
+ * each population are the same as with an empty cache.
+ */
+public class PatientScopedContext extends Context {
+
+    private static final String PATIENT_CONTEXT = "Patient";
+    // "Population" is the name used by libraries written before CQL 1.4
+    private static final List<String> UNFILTERED_CONTEXTS = Arrays.asList("Unfiltered", "Population");
+
+    private Map<Pair<VersionedIdentifier, String>, CachedExpression> runCache;
+    private Map<Pair<VersionedIdentifier, String>, CachedExpression> patientCache = new HashMap<>();
+    // Size of the evaluated resources when a definition that is not cached started evaluating
+    private Map<Pair<VersionedIdentifier, String>, Integer> pendingExpressions = new HashMap<>();
+    private Object currentPatient;
+    private PatientCohort cohort = new PatientCohort();
+
+    /**
+     * @param runCache the cache of patient independent results, must be thread safe
+     *                 if it is shared by contexts used on different threads
+     */
+    public PatientScopedContext(Library library, Map<Pair<VersionedIdentifier, String>, CachedExpression> runCache) {
+        super(library);
+        this.runCache = runCache;
+    }
+
+    /**
+     * @return the patients this context is about to evaluate, used by data
+     *         providers that retrieve the data of several patients at once
+     */
+    public PatientCohort getCohort() {
+        return this.cohort;
+    }
+
+    @Override
+    public void setContextValue(String context, Object contextValue) {
+        if (PATIENT_CONTEXT.equals(context) && !Objects.equals(this.currentPatient, contextValue)) {
+            this.currentPatient = contextValue;
+            this.patientCache.clear();
+            this.pendingExpressions.clear();
+        }
+
+        super.setContextValue(context, contextValue);
+    }
+
+    @Override
+    public boolean isExpressionInCache(VersionedIdentifier libraryId, String name) {
+        Pair<VersionedIdentifier, String> key = Pair.of(libraryId, name);
+        if (this.getCache().containsKey(key)) {
+            return true;
+        }
+
+        this.pendingExpressions.putIfAbsent(key, this.getEvaluatedResources().size());
+        return false;
+    }
+
+    @Override
+    public void addExpressionToCache(VersionedIdentifier libraryId, String name, Object result) {
+        Pair<VersionedIdentifier, String> key = Pair.of(libraryId, name);
+
+        List<Object> evaluatedResources = this.getEvaluatedResources();
+        Integer start = this.pendingExpressions.remove(key);
+        if (start == null || start > evaluatedResources.size()) {
+            start = 0;
+        }
+
+        this.getCache().putIfAbsent(key, new CachedExpression(result,
+                new ArrayList<>(evaluatedResources.subList(start, evaluatedResources.size()))));
+    }
+
+    @Override
+    public Object getExpressionResultFromCache(VersionedIdentifier libraryId, String name) {
+        CachedExpression cached = this.getCache().get(Pair.of(libraryId, name));
+        if (cached == null) {
+            return null;
+        }
+
+        this.getEvaluatedResources().addAll(cached.getEvaluatedResources());
+        return cached.getValue();
+    }
+
+    private Map<Pair<VersionedIdentifier, String>, CachedExpression> getCache() {
+        return UNFILTERED_CONTEXTS.contains(this.getCurrentContext()) ? this.runCache : this.patientCache;
+    }
+
+    /**
+     * The result of a definition and the resources touched while evaluating it.
+     * The result may be null.
+     */
+    public static class CachedExpression {
+        private Object value;
+        private List<Object> evaluatedResources;
+
+        public CachedExpression(Object value, List<Object> evaluatedResources) {
+            this.value = value;
+            this.evaluatedResources = Collections.unmodifiableList(evaluatedResources);
+        }
+
+        public Object getValue() {
+            return this.value;
+        }
+
+        public List<Object> getEvaluatedResources() {
+            return this.evaluatedResources;
+        }
+    }
+}
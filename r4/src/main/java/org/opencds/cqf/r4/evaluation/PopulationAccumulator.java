@@ -0,0 +1,99 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Collects the members of one population (initial population, numerator, ...)
+ * of a measure group.
+ *
+ * Members are only counted, so they are kept as bits indexed by an
+ * {@link IdDictionary} rather than as resources. Patient-list reports
+ * additionally keep the id and display name of the patients in the population.
+ *
+ * Removals are remembered so that accumulators filled from consecutive chunks
+ * of patients can be merged, in chunk order, into exactly the population a
+ * serial evaluation of the same patients would have produced.
+ */
+public class PopulationAccumulator {
+
+    private IdDictionary dictionary;
+    private BitSet resources = new BitSet();
+    private BitSet removedResources = new BitSet();
+
+    // Only tracked for patient-list reports, patient id to display name
+    private LinkedHashMap<String, String> patients;
+    private HashSet<String> removedPatients;
+
+    public PopulationAccumulator(IdDictionary dictionary, boolean trackPatients) {
+        this.dictionary = dictionary;
+        if (trackPatients) {
+            this.patients = new LinkedHashMap<>();
+            this.removedPatients = new HashSet<>();
+        }
+    }
+
+    public void add(Resource resource) {
+        int index = this.dictionary.indexOf(resource.getIdElement().getIdPart());
+        this.resources.set(index);
+        this.removedResources.clear(index);
+    }
+
+    public void remove(String id) {
+        int index = this.dictionary.indexOf(id);
+        this.resources.clear(index);
+        this.removedResources.set(index);
+    }
+
+    public void addPatient(Patient patient) {
+        if (this.patients != null) {
+            String id = patient.getIdElement().getIdPart();
+            this.patients.put(id, patient.getNameFirstRep().getNameAsSingleString());
+            this.removedPatients.remove(id);
+        }
+    }
+
+    public void removePatient(String id) {
+        if (this.patients != null) {
+            this.patients.remove(id);
+            this.removedPatients.add(id);
+        }
+    }
+
+    public int size() {
+        return this.resources.cardinality();
+    }
+
+    /**
+     * @return the ids and display names of the patients in this population, or
+     *         null if patients are not tracked
+     */
+    public Map<String, String> getPatients() {
+        return this.patients;
+    }
+
+    /**
+     * Applies the additions and removals recorded by an accumulator that
+     * evaluated the patients following the ones evaluated by this accumulator.
+     */
+    public void merge(PopulationAccumulator next) {
+        this.resources.andNot(next.removedResources);
+        this.resources.or(next.resources);
+        this.removedResources.andNot(next.resources);
+        this.removedResources.or(next.removedResources);
+
+        if (this.patients != null && next.patients != null) {
+            for (String id : next.removedPatients) {
+                this.patients.remove(id);
+            }
+            this.patients.putAll(next.patients);
+            this.removedPatients.removeAll(next.patients.keySet());
+            this.removedPatients.addAll(next.removedPatients);
+        }
+    }
+}
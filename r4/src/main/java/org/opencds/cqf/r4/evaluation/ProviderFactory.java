@@ -1,18 +1,29 @@
 package org.opencds.cqf.r4.evaluation;
 
+import java.util.concurrent.ExecutorService;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.lucene.search.BooleanQuery;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
 import org.opencds.cqf.common.helpers.ClientHelper;
 import org.opencds.cqf.common.providers.R4ApelonFhirTerminologyProvider;
+import org.opencds.cqf.common.providers.RemoteCachingTerminologyProvider;
+import org.opencds.cqf.common.providers.RemoteTerminologyCache;
+import org.opencds.cqf.common.retrieve.CachingRetrieveProvider;
+import org.opencds.cqf.common.retrieve.CohortRetrieveProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PatientCohort;
+import org.opencds.cqf.common.retrieve.QueryResultCache;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.fhir.terminology.R4FhirTerminologyProvider;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.springframework.stereotype.Component;
 
@@ -30,19 +41,25 @@ public class ProviderFactory implements EvaluationProviderFactory {
     TerminologyProvider defaultTerminologyProvider;
     FhirContext fhirContext;
     ModelResolver modelResolver;
+    ExecutorService retrieveQueryExecutor;
+    RemoteTerminologyCache remoteTerminologyCache;
 
     @Inject
     public ProviderFactory(FhirContext fhirContext, DaoRegistry registry,
-            TerminologyProvider defaultTerminologyProvider, @Named("r4ModelResolver") ModelResolver modelResolver) {
+            TerminologyProvider defaultTerminologyProvider, @Named("r4ModelResolver") ModelResolver modelResolver,
+            @Named("retrieveQueryExecutor") ExecutorService retrieveQueryExecutor,
+            RemoteTerminologyCache remoteTerminologyCache) {
         BooleanQuery.setMaxClauseCount(10000000);
         this.defaultTerminologyProvider = defaultTerminologyProvider;
         this.registry = registry;
         this.fhirContext = fhirContext;
         this.modelResolver = modelResolver;
+        this.retrieveQueryExecutor = retrieveQueryExecutor;
+        this.remoteTerminologyCache = remoteTerminologyCache;
     }
 
     public DataProvider createDataProvider(String model, String version) {
-        return this.createDataProvider(model, version, null, null, null);
+        return this.createDataProvider(model, version, (String) null, null, null);
     }
 
     public DataProvider createDataProvider(String model, String version, String url, String user, String pass) {
@@ -51,13 +68,33 @@ public class ProviderFactory implements EvaluationProviderFactory {
     }
 
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider) {
+        return this.createDataProvider(model, version, terminologyProvider, null, null);
+    }
+
+    public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider,
+            RetrieveCache retrieveCache, PatientCohort cohort) {
         if (model.equals("FHIR") && version.startsWith("4")) {
             JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry,
                     new SearchParameterResolver(this.fhirContext));
             retrieveProvider.setTerminologyProvider(terminologyProvider);
             retrieveProvider.setExpandValueSets(true);
+            retrieveProvider.setQueryExecutor(this.retrieveQueryExecutor);
+
+            // Each data provider serves a single evaluation
+            int queryCacheSize = HapiProperties.getRetrieveQueryCacheMaxResources();
+            if (queryCacheSize > 0) {
+                retrieveProvider.setQueryCache(new QueryResultCache(queryCacheSize));
+            }
 
-            return new CompositeDataProvider(modelResolver, retrieveProvider);
+            RetrieveProvider provider = retrieveProvider;
+            if (cohort != null) {
+                provider = new CohortRetrieveProvider(retrieveProvider, cohort, this.registry, this.modelResolver);
+            }
+            if (retrieveCache != null) {
+                provider = new CachingRetrieveProvider(provider, retrieveCache);
+            }
+
+            return new CompositeDataProvider(modelResolver, provider);
         }
 
         throw new IllegalArgumentException(
@@ -68,10 +105,10 @@ public class ProviderFactory implements EvaluationProviderFactory {
             String pass) {
         if (url != null && !url.isEmpty()) {
             IGenericClient client = ClientHelper.getClient(FhirContext.forCached(FhirVersionEnum.R4), url, user, pass);
-            if (url.contains("apelon.com")) {
-                return new R4ApelonFhirTerminologyProvider(client);
-            }
-            return new R4FhirTerminologyProvider(client);
+            TerminologyProvider terminologyProvider = url.contains("apelon.com")
+                    ? new R4ApelonFhirTerminologyProvider(client, this.remoteTerminologyCache)
+                    : new R4FhirTerminologyProvider(client);
+            return new RemoteCachingTerminologyProvider(terminologyProvider, url, this.remoteTerminologyCache);
         }
         return this.defaultTerminologyProvider;
     }
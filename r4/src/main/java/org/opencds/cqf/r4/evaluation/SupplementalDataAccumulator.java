@@ -0,0 +1,67 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.mutable.MutableInt;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Counts the values of the supplemental data elements of a measure.
+ *
+ * Counts are kept per supplemental data key and code. The system and display
+ * of a code are recorded the first time the code is seen, so the report can
+ * label its observations without going back to the patients. Accumulators of
+ * consecutive chunks of patients can be combined with {@link #merge}.
+ */
+public class SupplementalDataAccumulator {
+
+    private LinkedHashMap<String, LinkedHashMap<String, MutableInt>> counts = new LinkedHashMap<>();
+    private HashMap<String, HashMap<String, Coding>> codings = new HashMap<>();
+
+    /**
+     * @param coding the system and display of the code, may be null
+     */
+    public void add(String key, String code, Coding coding) {
+        this.counts.computeIfAbsent(key, x -> new LinkedHashMap<>()).computeIfAbsent(code, x -> new MutableInt())
+                .increment();
+
+        if (coding != null) {
+            this.codings.computeIfAbsent(key, x -> new HashMap<>()).putIfAbsent(code, coding);
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.counts.isEmpty();
+    }
+
+    /**
+     * @return the counts of each code, per supplemental data key
+     */
+    public Map<String, LinkedHashMap<String, MutableInt>> getCounts() {
+        return this.counts;
+    }
+
+    /**
+     * @return the first Coding seen for the code, or null if none was seen
+     */
+    public Coding getCoding(String key, String code) {
+        HashMap<String, Coding> keyCodings = this.codings.get(key);
+        return keyCodings != null ? keyCodings.get(code) : null;
+    }
+
+    public void merge(SupplementalDataAccumulator next) {
+        for (Map.Entry<String, LinkedHashMap<String, MutableInt>> entry : next.counts.entrySet()) {
+            LinkedHashMap<String, MutableInt> keyCounts = this.counts.computeIfAbsent(entry.getKey(),
+                    x -> new LinkedHashMap<>());
+            entry.getValue().forEach(
+                    (code, count) -> keyCounts.computeIfAbsent(code, x -> new MutableInt()).add(count.intValue()));
+        }
+
+        for (Map.Entry<String, HashMap<String, Coding>> entry : next.codings.entrySet()) {
+            HashMap<String, Coding> keyCodings = this.codings.computeIfAbsent(entry.getKey(), x -> new HashMap<>());
+            entry.getValue().forEach(keyCodings::putIfAbsent);
+        }
+    }
+}
@@ -2,7 +2,9 @@ package org.opencds.cqf.r4.helpers;
 
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
 
 public class Helper {
 
@@ -15,4 +17,12 @@ public class Helper {
                         .setDetails(new CodeableConcept().addCoding(code))
         );
     }
+
+    /**
+     * Adds a count to the parameters of an operation. Counts above the range
+     * of a FHIR integer are reported as its maximum.
+     */
+    public static void addCount(Parameters parameters, String name, long count) {
+        parameters.addParameter().setName(name).setValue(new IntegerType((int) Math.min(count, Integer.MAX_VALUE)));
+    }
 }
@@ -66,9 +66,12 @@ public class LibraryHelper extends ca.uhn.fhir.cql.r4.helper.LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
         List<org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider> contentProviders = Collections
-                .singletonList(new LibraryContentProvider<org.hl7.fhir.r4.model.Library, Attachment>(provider,
-                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+                .singletonList(new org.opencds.cqf.common.providers.LibraryContentProvider<org.hl7.fhir.r4.model.Library, Attachment>(
+                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData(),
+                        x -> x.getExtensionString(org.opencds.cqf.common.providers.LibraryContentProvider.SOURCE_HASH_EXTENSION_URL)));
 
+        // Attached ELM compiled from the current CQL with the same options is
+        // loaded as is, anything else is translated
         TranslatingLibraryLoader translatingLibraryLoader = new TranslatingLibraryLoader(modelManager, contentProviders,
                 translatorOptions);
 
@@ -9,6 +9,8 @@ import java.util.Map;
 
 import javax.inject.Inject;
 
+import com.github.benmanes.caffeine.cache.Cache;
+
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -55,14 +57,17 @@ public class CqlExecutionProvider {
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private FhirContext context;
     private LibraryHelper libraryHelper;
+    private Cache<String, org.cqframework.cql.elm.execution.Library> compiledExpressionCache;
 
     @Inject
     public CqlExecutionProvider(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider,
-            EvaluationProviderFactory providerFactory, FhirContext context, LibraryHelper libraryHelper) {
+            EvaluationProviderFactory providerFactory, FhirContext context, LibraryHelper libraryHelper,
+            Cache<String, org.cqframework.cql.elm.execution.Library> compiledExpressionCache) {
         this.providerFactory = providerFactory;
         this.libraryResourceProvider = libraryResourceProvider;
         this.context = context;
         this.libraryHelper = libraryHelper;
+        this.compiledExpressionCache = compiledExpressionCache;
     }
 
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> getLibraryResourceProvider() {
@@ -172,20 +177,38 @@ public class CqlExecutionProvider {
     public Object evaluateInContext(DomainResource instance, String cql, String patientId) {
         Iterable<CanonicalType> libraries = getLibraryReferences(instance);
 
+        LibraryLoader libraryLoader = this.libraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
+
+        // The wrapper library only depends on the resource type, the referenced
+        // libraries and the expression, so it is compiled once for each of them.
+        // The cache is cleared whenever a Library changes.
+        org.cqframework.cql.elm.execution.Library library = this.compiledExpressionCache.get(
+                getExpressionCacheKey(instance, libraries, cql), x -> translateExpression(instance, libraries, cql));
+
+        // resolve execution context
+        Context context = setupContext(instance, patientId, libraryLoader, library);
+        return context.resolveExpressionRef("Expression").evaluate(context);
+    }
+
+    private String getExpressionCacheKey(DomainResource instance, Iterable<CanonicalType> libraries, String cql) {
+        StringBuilder key = new StringBuilder(instance.fhirType());
+        for (CanonicalType reference : libraries) {
+            key.append(" ").append(reference.getValue());
+        }
+
+        return key.append("\n").append(cql).toString();
+    }
+
+    private org.cqframework.cql.elm.execution.Library translateExpression(DomainResource instance,
+            Iterable<CanonicalType> libraries, String cql) {
         String fhirVersion = this.context.getVersion().getVersion().getFhirVersionString();
 
         String source = String.format(
                 "library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"+ fhirVersion +"' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
                 buildIncludes(libraries), instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
 
-        LibraryLoader libraryLoader = this.libraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
-
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
+        return TranslatorHelper.translateLibrary(source,
                 this.libraryHelper.getLibraryManager(this.getLibraryResourceProvider()), this.libraryHelper.getModelManager());
-
-        // resolve execution context
-        Context context = setupContext(instance, patientId, libraryLoader, library);
-        return context.resolveExpressionRef("Expression").evaluate(context);
     }
 
     public Object evaluateInContext(DomainResource instance, String cql, String patientId, Boolean aliasedExpression) {
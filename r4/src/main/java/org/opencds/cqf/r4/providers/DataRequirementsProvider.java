@@ -32,6 +32,7 @@ import com.vladsch.flexmark.util.data.MutableDataSet;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.CodeDef;
@@ -57,6 +58,7 @@ import org.hl7.fhir.r4.model.ParameterDefinition;
 import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.common.providers.LibraryContentProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.tooling.measure.r4.CodeTerminologyRef;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
@@ -529,14 +531,7 @@ public class DataRequirementsProvider {
 
     public CqlTranslator getTranslator(org.hl7.fhir.r4.model.Library library, LibraryManager libraryManager,
             ModelManager modelManager) {
-        Attachment cql = null;
-        for (Attachment a : library.getContent()) {
-            if (a.getContentType().equals("text/cql")) {
-                cql = a;
-                break;
-            }
-        }
-
+        Attachment cql = getCqlAttachment(library);
         if (cql == null) {
             return null;
         }
@@ -546,6 +541,27 @@ public class DataRequirementsProvider {
                 libraryManager, modelManager);
     }
 
+    public CqlTranslator getTranslator(org.hl7.fhir.r4.model.Library library, LibraryManager libraryManager,
+            ModelManager modelManager, CqlTranslatorOptions translatorOptions) {
+        Attachment cql = getCqlAttachment(library);
+        if (cql == null) {
+            return null;
+        }
+
+        return TranslatorHelper.getTranslator(new ByteArrayInputStream(cql.getData()), libraryManager, modelManager,
+                translatorOptions);
+    }
+
+    private Attachment getCqlAttachment(org.hl7.fhir.r4.model.Library library) {
+        for (Attachment a : library.getContent()) {
+            if (a.getContentType().equals("text/cql")) {
+                return a;
+            }
+        }
+
+        return null;
+    }
+
     public void formatCql(org.hl7.fhir.r4.model.Library library) {
         for (Attachment att : library.getContent()) {
             if (att.getContentType().equals("text/cql")) {
@@ -568,11 +584,19 @@ public class DataRequirementsProvider {
 
     public void ensureElm(org.hl7.fhir.r4.model.Library library, CqlTranslator translator) {
 
-        library.getContent().removeIf(a -> a.getContentType().equals("application/elm+xml"));
+        library.getContent().removeIf(a -> a.getContentType().equals("application/elm+xml")
+                || a.getContentType().equals("application/elm+json"));
         String xml = translator.toXml();
         Attachment elm = new Attachment();
         elm.setContentType("application/elm+xml");
         elm.setData(xml.getBytes());
+
+        // Lets the library loader use the ELM for as long as the CQL is unchanged
+        Attachment cql = getCqlAttachment(library);
+        if (cql != null) {
+            elm.addExtension(LibraryContentProvider.SOURCE_HASH_EXTENSION_URL,
+                    new StringType(LibraryContentProvider.getSourceHash(cql.getData())));
+        }
         library.getContent().add(elm);
     }
 
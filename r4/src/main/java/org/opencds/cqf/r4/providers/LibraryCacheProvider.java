@@ -0,0 +1,46 @@
+package org.opencds.cqf.r4.providers;
+
+import java.util.Locale;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.r4.evaluation.LibraryCacheWarmer;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+
+import static org.opencds.cqf.r4.helpers.Helper.addCount;
+
+@Component
+public class LibraryCacheProvider {
+
+    private LibraryCacheWarmer libraryCacheWarmer;
+
+    @Inject
+    public LibraryCacheProvider(LibraryCacheWarmer libraryCacheWarmer) {
+        this.libraryCacheWarmer = libraryCacheWarmer;
+    }
+
+    /**
+     * Reports the progress of the library cache warm-up. The server is ready
+     * once the warm-up is complete, or when it is not enabled. A warm-up that
+     * could not run to the end reports a failed status and is not ready.
+     */
+    @Operation(name = "$library-cache-status", idempotent = true)
+    public Parameters libraryCacheStatus() {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("status")
+                .setValue(new StringType(this.libraryCacheWarmer.getStatus().name().toLowerCase(Locale.ROOT)));
+        parameters.addParameter().setName("ready").setValue(new BooleanType(this.libraryCacheWarmer.isReady()));
+        addCount(parameters, "libraryCount", this.libraryCacheWarmer.getLibraryCount());
+        addCount(parameters, "warmedCount", this.libraryCacheWarmer.getWarmedCount());
+        addCount(parameters, "failureCount", this.libraryCacheWarmer.getFailureCount());
+        addCount(parameters, "cachedLibraryCount", this.libraryCacheWarmer.getCachedLibraryCount());
+        addCount(parameters, "elapsedMillis", this.libraryCacheWarmer.getElapsedMillis());
+
+        return parameters;
+    }
+}
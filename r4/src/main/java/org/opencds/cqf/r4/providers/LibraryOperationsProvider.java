@@ -34,6 +34,8 @@ import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.LoggingHelper;
 import org.opencds.cqf.common.providers.LibraryContentProvider;
 import org.opencds.cqf.common.providers.R4ApelonFhirTerminologyProvider;
+import org.opencds.cqf.common.providers.RemoteCachingTerminologyProvider;
+import org.opencds.cqf.common.providers.RemoteTerminologyCache;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
@@ -80,16 +82,19 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
     DaoRegistry registry;
     TerminologyProvider defaultTerminologyProvider;
     private LibraryHelper libraryHelper;
+    private RemoteTerminologyCache remoteTerminologyCache;
 
     @Inject
     public LibraryOperationsProvider(LibraryResourceProvider libraryResourceProvider,
-            NarrativeProvider narrativeProvider, DaoRegistry registry, TerminologyProvider defaultTerminologyProvider, DataRequirementsProvider dataRequirementsProvider, LibraryHelper libraryHelper) {
+            NarrativeProvider narrativeProvider, DaoRegistry registry, TerminologyProvider defaultTerminologyProvider, DataRequirementsProvider dataRequirementsProvider, LibraryHelper libraryHelper,
+            RemoteTerminologyCache remoteTerminologyCache) {
         this.narrativeProvider = narrativeProvider;
         this.dataRequirementsProvider = dataRequirementsProvider;
         this.libraryResourceProvider = libraryResourceProvider;
         this.registry = registry;
         this.defaultTerminologyProvider = defaultTerminologyProvider;
         this.libraryHelper = libraryHelper;
+        this.remoteTerminologyCache = remoteTerminologyCache;
     }
 
     private ModelManager getModelManager() {
@@ -127,8 +132,9 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         ModelManager modelManager = this.getModelManager();
         LibraryManager libraryManager = this.getLibraryManager(modelManager);
 
+        // Compiled with the options of the library loader, so it can use the ELM
         CqlTranslator translator = this.dataRequirementsProvider.getTranslator(theResource, libraryManager,
-                modelManager);
+                modelManager, this.libraryHelper.getTranslatorOptions());
         if (translator.getErrors().size() > 0) {
             throw new RuntimeException("Errors during library compilation.");
         }
@@ -225,10 +231,12 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
         if (terminologyEndpoint != null) {
             IGenericClient client = ClientHelperDos.getClient(resolver.getFhirContext(), terminologyEndpoint);
             if (terminologyEndpoint.getAddress().contains("apelon")) {
-                terminologyProvider = new R4ApelonFhirTerminologyProvider(client);
+                terminologyProvider = new R4ApelonFhirTerminologyProvider(client, this.remoteTerminologyCache);
             } else {
                 terminologyProvider = new R4FhirTerminologyProvider(client);
             }
+            terminologyProvider = new RemoteCachingTerminologyProvider(terminologyProvider,
+                    terminologyEndpoint.getAddress(), this.remoteTerminologyCache);
         } else {
             terminologyProvider = this.defaultTerminologyProvider;
         }
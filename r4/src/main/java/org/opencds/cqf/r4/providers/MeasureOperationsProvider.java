@@ -15,6 +15,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.base.Strings;
 
+import org.apache.commons.lang3.tuple.Triple;
 import org.hibernate.cfg.NotYetImplementedException;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
@@ -32,6 +33,7 @@ import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
@@ -47,11 +49,18 @@ import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResources;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.TerminologyWarmer;
 import org.opencds.cqf.common.helpers.DateHelper;
+import org.opencds.cqf.common.helpers.UsingHelper;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+import org.opencds.cqf.r4.evaluation.MeasureBatchEvaluation;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluation;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluationSeed;
+import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
 import org.slf4j.Logger;
@@ -190,7 +199,17 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "practitioner") String practitionerRef,
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
-            @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
+            @OperationParam(name = "pass") String pass,
+            @OperationParam(name = "evaluatedResources") String evaluatedResources)
+            throws InternalErrorException, FHIRException {
+        EvaluatedResources evaluatedResourcesMode = EvaluatedResources.FULL;
+        if (evaluatedResources != null) {
+            evaluatedResourcesMode = EvaluatedResources.fromCode(evaluatedResources);
+            if (evaluatedResourcesMode == null) {
+                throw new IllegalArgumentException("Invalid evaluatedResources: " + evaluatedResources);
+            }
+        }
+
         LibraryLoader libraryLoader = this.libraryHelper.createLibraryLoader(this.libraryResolutionProvider);
         MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
                 this.libraryResolutionProvider, this.libraryHelper);
@@ -204,7 +223,8 @@ public class MeasureOperationsProvider {
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext);
+        evaluator.setEvaluatedResources(evaluatedResourcesMode);
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
@@ -230,6 +250,111 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    /*
+     *
+     * Evaluates several measures over the same patients in one pass, sharing the
+     * retrieves made for each patient between the measures. Returns a Bundle with
+     * one MeasureReport per measure, in the order the measures were given.
+     *
+     */
+    @Operation(name = "$evaluate-measures", idempotent = true, type = Measure.class)
+    public Bundle evaluateMeasures(
+            @OperationParam(name = "measure", min = 1, max = OperationParam.MAX_UNLIMITED) List<StringType> measureIds,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd,
+            @OperationParam(name = "reportType") String reportType,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "practitioner") String practitionerRef,
+            @OperationParam(name = "evaluatedResources") String evaluatedResources)
+            throws InternalErrorException, FHIRException {
+        EvaluatedResources evaluatedResourcesMode = EvaluatedResources.FULL;
+        if (evaluatedResources != null) {
+            evaluatedResourcesMode = EvaluatedResources.fromCode(evaluatedResources);
+            if (evaluatedResourcesMode == null) {
+                throw new IllegalArgumentException("Invalid evaluatedResources: " + evaluatedResources);
+            }
+        }
+
+        RetrieveCache retrieveCache = new RetrieveCache();
+        LibraryLoader libraryLoader = this.libraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        List<MeasureEvaluationSeed> seeds = new ArrayList<>();
+        for (StringType measureId : measureIds) {
+            IdType theId = new IdType(measureId.getValue());
+            Measure measure = this.measureResourceProvider.getDao().read(theId);
+            if (measure == null) {
+                throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+            }
+
+            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
+                    this.libraryResolutionProvider, this.libraryHelper);
+            seed.setRetrieveCache(retrieveCache);
+            seed.setup(measure, periodStart, periodEnd, productLine, null, null, null);
+            seeds.add(seed);
+        }
+
+        MeasureBatchEvaluation evaluator = new MeasureBatchEvaluation(this.registry, retrieveCache);
+        evaluator.setEvaluatedResources(evaluatedResourcesMode);
+        List<MeasureReport> reports;
+        if (reportType == null || reportType.equals("population")) {
+            reports = evaluator.evaluatePopulationMeasures(seeds);
+        } else if (reportType.equals("patient-list")) {
+            reports = evaluator.evaluateSubjectListMeasures(seeds, practitionerRef);
+        } else {
+            throw new IllegalArgumentException("Invalid report type: " + reportType);
+        }
+
+        List<Resource> resources = new ArrayList<>();
+        for (MeasureReport report : reports) {
+            if (productLine != null) {
+                Extension ext = new Extension();
+                ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
+                ext.setValue(new StringType(productLine));
+                report.addExtension(ext);
+            }
+            resources.add(report);
+        }
+
+        return new FhirMeasureBundler().bundle(resources);
+    }
+
+    /*
+     *
+     * Expands every value set used by the measure's libraries, so the first
+     * evaluation of the measure finds them cached.
+     *
+     */
+    @Operation(name = "$warm-terminology", idempotent = true, type = Measure.class)
+    public Parameters warmTerminology(@IdParam IdType theId, @OperationParam(name = "source") String source,
+            @OperationParam(name = "user") String user, @OperationParam(name = "pass") String pass) {
+        Measure measure = this.measureResourceProvider.getDao().read(theId);
+        if (measure == null) {
+            throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
+        }
+
+        LibraryLoader libraryLoader = this.libraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        this.libraryHelper.loadLibraries(measure, libraryLoader, this.libraryResolutionProvider);
+        org.cqframework.cql.elm.execution.Library library = this.libraryHelper.resolvePrimaryLibrary(measure,
+                libraryLoader, this.libraryResolutionProvider);
+
+        List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        Parameters parameters = new Parameters();
+        if (usingDefs.isEmpty()) {
+            parameters.addParameter().setName("valueSetCount").setValue(new IntegerType(0));
+            return parameters;
+        }
+
+        TerminologyProvider terminologyProvider = this.factory.createTerminologyProvider(usingDefs.get(0).getLeft(),
+                usingDefs.get(0).getMiddle(), source, user, pass);
+        TerminologyWarmer.WarmUpResult result = new TerminologyWarmer(terminologyProvider,
+                HapiProperties.getTerminologyWarmUpThreadCount()).warm(library, libraryLoader);
+
+        parameters.addParameter().setName("valueSetCount").setValue(new IntegerType(result.getValueSetCount()));
+        parameters.addParameter().setName("failureCount").setValue(new IntegerType(result.getFailureCount()));
+        parameters.addParameter().setName("elapsedMillis")
+                .setValue(new IntegerType((int) result.getElapsedMillis()));
+        return parameters;
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     // @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class)
@@ -538,7 +663,7 @@ public class MeasureOperationsProvider {
 
             // TODO - this is configured for patient-level evaluation only
             report = evaluateMeasure(measure.getIdElement(), periodStart, periodEnd, null, "patient", subject, null,
-            null, null, null, null, null);
+            null, null, null, null, null, null);
 
             report.setId(UUID.randomUUID().toString());
             report.setDate(new Date());
@@ -814,7 +939,7 @@ public class MeasureOperationsProvider {
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
         MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null, patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+                practitionerRef, lastReceivedOn, null, null, null, null);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -0,0 +1,53 @@
+package org.opencds.cqf.r4.providers;
+
+import javax.inject.Inject;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+
+import static org.opencds.cqf.r4.helpers.Helper.addCount;
+
+@Component
+public class TerminologyCacheProvider {
+
+    private Cache<String, Iterable<Code>> terminologyCodeCache;
+
+    @Inject
+    public TerminologyCacheProvider(AsyncCache<String, Iterable<Code>> terminologyCodeCache) {
+        this.terminologyCodeCache = terminologyCodeCache.synchronous();
+    }
+
+    /**
+     * Reports the use of the cache of expanded value sets since the server
+     * started, so it can be sized from real data.
+     */
+    @Operation(name = "$terminology-cache-stats", idempotent = true)
+    public Parameters terminologyCacheStats() {
+        CacheStats stats = this.terminologyCodeCache.stats();
+
+        Parameters parameters = new Parameters();
+        addCount(parameters, "valueSetCount", this.terminologyCodeCache.estimatedSize());
+        this.terminologyCodeCache.policy().eviction().ifPresent(eviction -> {
+            eviction.weightedSize().ifPresent(codes -> addCount(parameters, "codeCount", codes));
+            addCount(parameters, "maxCodeCount", eviction.getMaximum());
+        });
+        addCount(parameters, "hitCount", stats.hitCount());
+        addCount(parameters, "missCount", stats.missCount());
+        parameters.addParameter().setName("hitRate").setValue(new DecimalType(stats.hitRate()));
+        addCount(parameters, "evictionCount", stats.evictionCount());
+        addCount(parameters, "evictedCodeCount", stats.evictionWeight());
+        addCount(parameters, "loadFailureCount", stats.loadFailureCount());
+        addCount(parameters, "averageLoadMillis", (long) (stats.averageLoadPenalty() / 1000000));
+        addCount(parameters, "totalLoadMillis", stats.totalLoadTime() / 1000000);
+
+        return parameters;
+    }
+}
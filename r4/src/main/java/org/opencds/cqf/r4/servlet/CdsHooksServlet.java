@@ -6,6 +6,7 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -40,11 +41,13 @@ import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.exceptions.InvalidRequestException;
 import org.opencds.cqf.common.helpers.LoggingHelper;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.QueryResultCache;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.exception.CqlException;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.fhir.exception.DataProviderException;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.r4.providers.PlanDefinitionApplyProvider;
@@ -55,6 +58,7 @@ import org.springframework.context.ApplicationContext;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.cql.common.provider.LibraryResolutionProvider;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 
 import org.opencds.cqf.r4.helpers.LibraryHelper;
@@ -69,7 +73,10 @@ public class CdsHooksServlet extends HttpServlet {
 
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResolutionProvider;
 
-    private JpaFhirRetrieveProvider fhirRetrieveProvider;
+    private DaoRegistry daoRegistry;
+
+    private SearchParameterResolver searchParameterResolver;
+    private ExecutorService retrieveQueryExecutor;
 
     private TerminologyProvider serverTerminologyProvider;
 
@@ -91,7 +98,9 @@ public class CdsHooksServlet extends HttpServlet {
         this.providerConfiguration = appCtx.getBean(ProviderConfiguration.class);
         this.planDefinitionProvider = appCtx.getBean(PlanDefinitionApplyProvider.class);
         this.libraryResolutionProvider = (LibraryResolutionProvider<org.hl7.fhir.r4.model.Library>)appCtx.getBean(LibraryResolutionProvider.class);
-        this.fhirRetrieveProvider = appCtx.getBean(JpaFhirRetrieveProvider.class);
+        this.daoRegistry = appCtx.getBean(DaoRegistry.class);
+        this.searchParameterResolver = appCtx.getBean(SearchParameterResolver.class);
+        this.retrieveQueryExecutor = appCtx.getBean("retrieveQueryExecutor", ExecutorService.class);
         this.serverTerminologyProvider = appCtx.getBean(TerminologyProvider.class);
         this.modelResolver = appCtx.getBean("r4ModelResolver", ModelResolver.class);
         this.libraryHelper = appCtx.getBean(LibraryHelper.class);
@@ -184,6 +193,14 @@ public class CdsHooksServlet extends HttpServlet {
             Library library = this.libraryHelper.resolvePrimaryLibrary(planDefinition, libraryLoader,
                     libraryResolutionProvider);
 
+            // A retrieve provider per request so query results are only cached for this evaluation
+            JpaFhirRetrieveProvider fhirRetrieveProvider = new JpaFhirRetrieveProvider(this.daoRegistry,
+                    this.searchParameterResolver);
+            int queryCacheSize = HapiProperties.getRetrieveQueryCacheMaxResources();
+            if (queryCacheSize > 0) {
+                fhirRetrieveProvider.setQueryCache(new QueryResultCache(queryCacheSize));
+            }
+            fhirRetrieveProvider.setQueryExecutor(this.retrieveQueryExecutor);
             CompositeDataProvider provider = new CompositeDataProvider(this.modelResolver, fhirRetrieveProvider);
 
             Context context = new Context(library);
@@ -209,6 +226,11 @@ public class CdsHooksServlet extends HttpServlet {
 
             String jsonResponse = toJsonResponse(evaluator.evaluate(evaluationContext));
 
+            if (fhirRetrieveProvider.getQueryCache() != null) {
+                logger.debug("Query cache hits: {}, misses: {}", fhirRetrieveProvider.getQueryCache().getHits(),
+                        fhirRetrieveProvider.getQueryCache().getMisses());
+            }
+
             logger.info(jsonResponse);
 
             response.getWriter().println(jsonResponse);
@@ -0,0 +1,42 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class IdDictionaryTest {
+
+    @Test
+    public void testIndexesAreDenseAndStable() {
+        IdDictionary dictionary = new IdDictionary();
+
+        int first = dictionary.indexOf("a");
+        int second = dictionary.indexOf("b");
+
+        assertEquals(0, first);
+        assertEquals(1, second);
+        assertEquals(first, dictionary.indexOf("a"));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void testConcurrentIndexing() {
+        IdDictionary dictionary = new IdDictionary();
+        Set<Integer> indexes = ConcurrentHashMap.newKeySet();
+
+        IntStream.range(0, 10000).parallel()
+                .forEach(i -> indexes.add(dictionary.indexOf("Patient-" + (i % 1000))));
+
+        assertEquals(1000, dictionary.size());
+        assertEquals(1000, indexes.size());
+        for (int i = 0; i < 1000; i++) {
+            assertNotEquals(-1, dictionary.indexOf("Patient-" + i));
+            assertEquals(true, indexes.contains(i));
+        }
+    }
+}
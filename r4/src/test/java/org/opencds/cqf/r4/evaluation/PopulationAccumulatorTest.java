@@ -0,0 +1,89 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+public class PopulationAccumulatorTest {
+
+    private IdDictionary dictionary = new IdDictionary();
+
+    @Test
+    public void testMergeAppliesLaterChunksInOrder() {
+        PopulationAccumulator first = new PopulationAccumulator(this.dictionary, false);
+        first.add(patient("a", "Ann"));
+        first.add(patient("b", "Bob"));
+
+        PopulationAccumulator second = new PopulationAccumulator(this.dictionary, false);
+        second.remove("a");
+        second.add(patient("c", "Cal"));
+
+        PopulationAccumulator third = new PopulationAccumulator(this.dictionary, false);
+        third.add(patient("a", "Ann"));
+        third.remove("b");
+
+        first.merge(second);
+        assertEquals(2, first.size());
+
+        first.merge(third);
+        assertEquals(2, first.size());
+        assertNull(first.getPatients());
+    }
+
+    @Test
+    public void testMergeMatchesSerialEvaluation() {
+        PopulationAccumulator serial = new PopulationAccumulator(this.dictionary, true);
+        serial.add(patient("a", "Ann"));
+        serial.addPatient(patient("a", "Ann"));
+        serial.remove("a");
+        serial.removePatient("a");
+        serial.add(patient("b", "Bob"));
+        serial.addPatient(patient("b", "Bob"));
+
+        PopulationAccumulator first = new PopulationAccumulator(this.dictionary, true);
+        first.add(patient("a", "Ann"));
+        first.addPatient(patient("a", "Ann"));
+        PopulationAccumulator second = new PopulationAccumulator(this.dictionary, true);
+        second.remove("a");
+        second.removePatient("a");
+        second.add(patient("b", "Bob"));
+        second.addPatient(patient("b", "Bob"));
+
+        first.merge(second);
+
+        assertEquals(serial.size(), first.size());
+        assertEquals(serial.getPatients(), first.getPatients());
+        assertEquals(Arrays.asList("b"), new ArrayList<>(first.getPatients().keySet()));
+        assertEquals("Bob", first.getPatients().get("b"));
+    }
+
+    @Test
+    public void testRemovalIsForgottenWhenLaterChunkAddsBack() {
+        PopulationAccumulator first = new PopulationAccumulator(this.dictionary, false);
+        PopulationAccumulator second = new PopulationAccumulator(this.dictionary, false);
+        second.remove("a");
+        PopulationAccumulator third = new PopulationAccumulator(this.dictionary, false);
+        third.add(patient("a", "Ann"));
+        PopulationAccumulator fourth = new PopulationAccumulator(this.dictionary, false);
+        fourth.add(patient("b", "Bob"));
+
+        first.merge(second);
+        first.merge(third);
+        first.merge(fourth);
+
+        assertEquals(2, first.size());
+    }
+
+    private static Patient patient(String id, String name) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addName(new HumanName().setFamily(name));
+        return patient;
+    }
+}